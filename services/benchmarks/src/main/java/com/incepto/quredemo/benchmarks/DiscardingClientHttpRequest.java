@@ -0,0 +1,93 @@
+package com.incepto.quredemo.benchmarks;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.function.Supplier;
+
+/**
+ * Request counting and releasing every written buffer, so that only the encoding is measured.
+ */
+class DiscardingClientHttpRequest implements ClientHttpRequest {
+
+    private static final URI URI = java.net.URI.create("http://localhost/studies/");
+
+    private final DataBufferFactory bufferFactory;
+    private final HttpHeaders headers = new HttpHeaders();
+    private final MultiValueMap<String, HttpCookie> cookies = new LinkedMultiValueMap<>();
+    private long writtenBytes;
+
+    DiscardingClientHttpRequest(DataBufferFactory bufferFactory) {
+        this.bufferFactory = bufferFactory;
+    }
+
+    long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return HttpMethod.POST;
+    }
+
+    @Override
+    public URI getURI() {
+        return URI;
+    }
+
+    @Override
+    public MultiValueMap<String, HttpCookie> getCookies() {
+        return cookies;
+    }
+
+    @Override
+    public DataBufferFactory bufferFactory() {
+        return bufferFactory;
+    }
+
+    @Override
+    public void beforeCommit(Supplier<? extends Mono<Void>> action) {
+        // nothing is committed
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+        return Flux.from(body)
+                .doOnNext(dataBuffer -> {
+                    writtenBytes += dataBuffer.readableByteCount();
+                    DataBufferUtils.release(dataBuffer);
+                })
+                .then();
+    }
+
+    @Override
+    public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+        return Flux.from(body).concatMap(this::writeWith).then();
+    }
+
+    @Override
+    public Mono<Void> setComplete() {
+        return Mono.empty();
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+}
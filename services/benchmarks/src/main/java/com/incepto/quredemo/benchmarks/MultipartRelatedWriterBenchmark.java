@@ -0,0 +1,139 @@
+package com.incepto.quredemo.benchmarks;
+
+import com.incepto.quredemo.client.DicomRelatedMultipartBodyInserter;
+import com.incepto.quredemo.client.QureDicomRelatedMultipartBodyInserter;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.codec.ClientCodecConfigurer;
+import org.springframework.http.codec.HttpMessageWriter;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.reactive.function.BodyInserter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the multipart/related encoding of the upload body, inserted the way the client does it
+ * in a request discarding the buffers.
+ * <p>
+ * Run with {@code java -jar services/benchmarks/target/benchmarks.jar -prof gc} to get the allocation rate,
+ * the {@code bytes} counter is the encoded body size per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MultipartRelatedWriterBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int parts;
+
+    @Param({"1024", "1048576", "104857600"})
+    private int partSize;
+
+    @Param({"bytes", "file"})
+    private String body;
+
+    @Param({"false", "true"})
+    private boolean fix;
+
+    private final DataBufferFactory bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    private BodyInserter.Context context;
+    private Object partBody;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] content = new byte[partSize];
+        new Random(42).nextBytes(content);
+        file = Files.createTempFile("benchmark", ".dcm");
+        Files.write(file, content);
+
+        // every part shares the same content, 100 parts of 100 MB would not fit in the heap otherwise
+        partBody = "file".equals(body) ? new FileSystemResource(file) : content;
+        context = new CodecContext(ClientCodecConfigurer.create().getWriters());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void encode(WrittenBytes writtenBytes) {
+        DicomRelatedMultipartBodyInserter inserter = fix
+                ? new QureDicomRelatedMultipartBodyInserter()
+                : new DicomRelatedMultipartBodyInserter();
+        for (int i = 0; i < parts; i++) {
+            inserter.with("1.2.840.10008." + i, partBody);
+        }
+        DiscardingClientHttpRequest request = new DiscardingClientHttpRequest(bufferFactory);
+        inserter.insert(request, context).block();
+        writtenBytes.bytes += request.getWrittenBytes();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class WrittenBytes {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Same writers as the ones of the WebClient, one list shared by every request.
+     */
+    private static class CodecContext implements BodyInserter.Context {
+
+        private final List<HttpMessageWriter<?>> messageWriters;
+
+        CodecContext(List<HttpMessageWriter<?>> messageWriters) {
+            this.messageWriters = messageWriters;
+        }
+
+        @Override
+        public List<HttpMessageWriter<?>> messageWriters() {
+            return messageWriters;
+        }
+
+        @Override
+        public Optional<ServerHttpRequest> serverRequest() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Map<String, Object> hints() {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.incepto.quredemo.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.client.QureSeriesResponseDto;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the Qure API, implementing the upload, result and report download endpoints
+ * with the latencies, processing times and failures of its {@link FakeQureServerSettings}.
+ * <p>
+ * The processing time of an instance starts when its upload is received, read from the name of its part. The parts
+ * sent without a name (the client without the Qure fix) are given to the first polls of unknown instances, in the
+ * order they were received.
+ */
+@Slf4j
+public class FakeQureServer {
+
+    private static final String APPLICATION_JSON = "application/json";
+    private static final String APPLICATION_DICOM = "application/dicom";
+
+    private final FakeQureServerSettings settings;
+    private final ObjectMapper objectMapper;
+    private final byte[] report;
+
+    private final Map<String, Long> readyAtNanos = new ConcurrentHashMap<>();
+    private final Queue<Long> unnamedReadyAtNanos = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong notReadyResponses = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong injectedResets = new AtomicLong();
+
+    private DisposableServer server;
+
+    public FakeQureServer(FakeQureServerSettings settings, ObjectMapper objectMapper) {
+        this.settings = settings;
+        this.objectMapper = objectMapper;
+        this.report = new byte[settings.getReportSize()];
+        ThreadLocalRandom.current().nextBytes(report);
+    }
+
+    public void start() {
+        server = HttpServer.create()
+                .host("localhost")
+                .port(settings.getPort())
+                .route(routes -> routes
+                        .post("/studies/", (request, response) -> handle(response, this::upload, request))
+                        .get("/results/{uid}", (request, response) -> handle(response, (r, parts) -> result(r), request))
+                        .get("/reports/{uid}", (request, response) -> handle(response, (r, parts) -> report(r), request)))
+                .bindNow();
+        log.info("fake Qure server listening on {}", getBaseUrl());
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.disposeNow();
+        }
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.port() + "/";
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fake Qure server: %d requests, %d MB uploaded, %d not ready, %d errors and %d resets injected",
+                requests.get(), uploadedBytes.get() / (1024 * 1024), notReadyResponses.get(),
+                injectedErrors.get(), injectedResets.get());
+    }
+
+    /**
+     * Consumes the request, scanning the part headers of an upload, waits for the sampled latency then either fails
+     * or lets the endpoint respond.
+     */
+    private Publisher<Void> handle(HttpServerResponse response,
+                                   BiFunction<HttpServerRequest, UploadedParts, Function<HttpServerResponse, Publisher<Void>>> endpoint,
+                                   HttpServerRequest request) {
+        requests.incrementAndGet();
+        UploadedParts parts = new UploadedParts(isMultipart(request));
+        return request.receive()
+                .doOnNext(parts::scan)
+                .map(ByteBuf::readableBytes)
+                .reduce(0L, Long::sum)
+                .doOnNext(uploadedBytes::addAndGet)
+                .doOnSuccess(bytes -> parts.receivedAtNanos = System.nanoTime())
+                .then(Mono.delay(settings.getLatency().sample()))
+                .then(Mono.defer(() -> {
+                    double draw = ThreadLocalRandom.current().nextDouble();
+                    if (draw < settings.getResetRate()) {
+                        injectedResets.incrementAndGet();
+                        return Mono.from(response.withConnection(connection -> connection.channel().close()).then());
+                    }
+                    if (draw < settings.getResetRate() + settings.getErrorRate()) {
+                        injectedErrors.incrementAndGet();
+                        return Mono.from(response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).send());
+                    }
+                    return Mono.from(endpoint.apply(request, parts).apply(response));
+                }));
+    }
+
+    private Function<HttpServerResponse, Publisher<Void>> upload(HttpServerRequest request, UploadedParts parts) {
+        // the client health probe posts a JSON body, which Qure rejects
+        if (!isMultipart(request)) {
+            return response -> response.status(HttpResponseStatus.BAD_REQUEST).send();
+        }
+        for (String instanceUid : parts.names) {
+            readyAtNanos.put(instanceUid, parts.receivedAtNanos + settings.getProcessingTime().sample().toNanos());
+        }
+        for (int i = 0; i < parts.unnamed; i++) {
+            unnamedReadyAtNanos.add(parts.receivedAtNanos + settings.getProcessingTime().sample().toNanos());
+        }
+        QureSeriesResponseDto series = new QureSeriesResponseDto();
+        series.setMessage("ok");
+        series.setResult(1);
+        series.setTask_created(1);
+        return response -> sendJson(response, HttpResponseStatus.OK, series);
+    }
+
+    private Function<HttpServerResponse, Publisher<Void>> result(HttpServerRequest request) {
+        String instanceUid = request.param("uid");
+        long now = System.nanoTime();
+        long readyAt = readyAtNanos.computeIfAbsent(instanceUid, uid -> {
+            Long unnamedReadyAt = unnamedReadyAtNanos.poll();
+            return unnamedReadyAt != null ? unnamedReadyAt : now + settings.getProcessingTime().sample().toNanos();
+        });
+        QureResultResponseDto result = new QureResultResponseDto();
+        if (now < readyAt) {
+            notReadyResponses.incrementAndGet();
+            result.setMessage("not ready, retry in " + Duration.ofNanos(readyAt - now).toMillis() + " ms");
+            return response -> sendJson(response, HttpResponseStatus.SERVICE_UNAVAILABLE, result);
+        }
+        result.setSuccess(true);
+        result.setIntegrity(true);
+        result.getFiles().getReports().setDcm(getBaseUrl() + "reports/" + instanceUid);
+        return response -> sendJson(response, HttpResponseStatus.OK, result);
+    }
+
+    private Function<HttpServerResponse, Publisher<Void>> report(HttpServerRequest request) {
+        return response -> response.status(HttpResponseStatus.OK)
+                .header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_DICOM)
+                .header(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(report.length))
+                .sendByteArray(Mono.just(report));
+    }
+
+    private static boolean isMultipart(HttpServerRequest request) {
+        return request.requestHeaders().get(HttpHeaderNames.CONTENT_TYPE, "").startsWith("multipart/related");
+    }
+
+    private Publisher<Void> sendJson(HttpServerResponse response, HttpResponseStatus status, Object body) {
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            return Mono.error(e);
+        }
+        return response.status(status)
+                .header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON)
+                .header(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(json.length))
+                .sendByteArray(Mono.just(json));
+    }
+
+    /**
+     * Part names of an upload body, read from the {@code Content-Disposition} headers as the chunks arrive. The end
+     * of a chunk is kept to find the headers split across two chunks.
+     */
+    private static class UploadedParts {
+
+        private static final Pattern CONTENT_DISPOSITION =
+                Pattern.compile("Content-Disposition: form-data(?:; name=\"([^\"]*)\"[^\r\n]*)?\r\n");
+        private static final int KEPT_CHARS = 512;
+
+        private final boolean multipart;
+        private final List<String> names = new ArrayList<>();
+        private int unnamed;
+        private String kept = "";
+        private volatile long receivedAtNanos;
+
+        UploadedParts(boolean multipart) {
+            this.multipart = multipart;
+        }
+
+        void scan(ByteBuf chunk) {
+            if (!multipart) {
+                return;
+            }
+            String text = kept + chunk.toString(StandardCharsets.ISO_8859_1);
+            Matcher matcher = CONTENT_DISPOSITION.matcher(text);
+            int end = 0;
+            while (matcher.find()) {
+                if (matcher.group(1) != null) {
+                    names.add(matcher.group(1));
+                } else {
+                    unnamed++;
+                }
+                end = matcher.end();
+            }
+            kept = text.substring(Math.max(end, text.length() - KEPT_CHARS));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.incepto.quredemo.loadtest;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+/**
+ * Behaviour of the {@link FakeQureServer}, bound from the {@code loadtest.server} properties.
+ */
+@Data
+public class FakeQureServerSettings {
+
+    /**
+     * Port the server listens on, a free port is picked when 0.
+     */
+    private int port;
+
+    /**
+     * Response time of every request.
+     */
+    private LatencyDistribution latency = new LatencyDistribution(Duration.ofMillis(50), 0.5);
+
+    /**
+     * Time between the first result request of an instance and its result being ready,
+     * the result requests get a 503 "not ready" response until then.
+     */
+    private LatencyDistribution processingTime = new LatencyDistribution(Duration.ofSeconds(3), 0.5);
+
+    /**
+     * Fraction of the requests answered with a 500.
+     */
+    private double errorRate;
+
+    /**
+     * Fraction of the requests whose connection is closed without a response.
+     */
+    private double resetRate;
+
+    private int reportSize = 64 * 1024;
+}
@@ -0,0 +1,35 @@
+package com.incepto.quredemo.loadtest;
+
+import lombok.Data;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Log-normal distribution of durations, defined by its median and the standard deviation of its logarithm.
+ * <p>
+ * A sigma of 0 gives a constant duration, 0.5 puts the p99 around 3 times the median and 1 around 10 times.
+ */
+@Data
+public class LatencyDistribution {
+
+    private Duration median = Duration.ZERO;
+
+    private double sigma;
+
+    public LatencyDistribution() {
+    }
+
+    public LatencyDistribution(Duration median, double sigma) {
+        this.median = median;
+        this.sigma = sigma;
+    }
+
+    public Duration sample() {
+        if (sigma == 0) {
+            return median;
+        }
+        double factor = Math.exp(sigma * ThreadLocalRandom.current().nextGaussian());
+        return Duration.ofNanos((long) (median.toNanos() * factor));
+    }
+}
@@ -0,0 +1,53 @@
+package com.incepto.quredemo.loadtest;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end latencies of the studies of a load test run, updated concurrently.
+ */
+public class LoadTestReport {
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger failed = new AtomicInteger();
+    private long[] latencies = new long[64];
+    private int succeeded;
+
+    public synchronized void recordSuccess(Duration latency) {
+        if (succeeded == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[succeeded++] = latency.toNanos();
+    }
+
+    public void recordFailure() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the successful studies completed (nearest rank).
+     */
+    public synchronized Duration percentile(double fraction) {
+        if (succeeded == 0) {
+            return Duration.ZERO;
+        }
+        long[] sorted = Arrays.copyOf(latencies, succeeded);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return Duration.ofNanos(sorted[Math.max(rank, 1) - 1]);
+    }
+
+    @Override
+    public String toString() {
+        int successes;
+        synchronized (this) {
+            successes = succeeded;
+        }
+        double seconds = Math.max(Duration.ofNanos(System.nanoTime() - startNanos).toMillis(), 1) / 1000d;
+        return String.format("load test done: %d studies succeeded, %d failed in %.1f s (%.2f studies/s), "
+                        + "latency p50 %d ms, p95 %d ms, p99 %d ms",
+                successes, failed.get(), seconds, successes / seconds,
+                percentile(0.5).toMillis(), percentile(0.95).toMillis(), percentile(0.99).toMillis());
+    }
+}
@@ -0,0 +1,25 @@
+package com.incepto.quredemo.loadtest;
+
+import lombok.Data;
+
+/**
+ * Settings of a load test run, bound from the {@code loadtest} properties
+ * (e.g. {@code --loadtest.studies=1000 --loadtest.server.errorRate=0.01}).
+ */
+@Data
+public class LoadTestSettings {
+
+    private int studies = 500;
+
+    /**
+     * Studies processed at the same time.
+     */
+    private int concurrency = 500;
+
+    /**
+     * Size of the synthetic DICOM files uploaded.
+     */
+    private int fileSize = 512 * 1024;
+
+    private FakeQureServerSettings server = new FakeQureServerSettings();
+}
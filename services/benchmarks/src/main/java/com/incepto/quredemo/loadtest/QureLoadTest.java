@@ -0,0 +1,121 @@
+package com.incepto.quredemo.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.incepto.quredemo.QureApplication;
+import com.incepto.quredemo.config.QureConfiguration;
+import com.incepto.quredemo.service.v1.QureService;
+import com.incepto.quredemo.service.v1.QureStudy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Pushes synthetic DICOM files through {@link QureService} against a {@link FakeQureServer}
+ * and reports the throughput and the p50 / p95 / p99 end-to-end latency of the studies.
+ * <p>
+ * The application is started without its command line runner, every {@code incepto.qure} property
+ * (pool, polling...) can be overridden on the command line, the base url is the fake server.
+ */
+@Slf4j
+@SpringBootConfiguration
+@EnableAutoConfiguration
+@ComponentScan(basePackageClasses = QureApplication.class,
+        excludeFilters = @ComponentScan.Filter(type = FilterType.ASSIGNABLE_TYPE, classes = QureApplication.class))
+public class QureLoadTest {
+
+    private static final String UID_ROOT = "1.2.826.0.1.3680043.10.";
+    private static final int PREAMBLE_SIZE = 128;
+
+    public static void main(String[] args) throws IOException {
+        SpringApplication app = new SpringApplication(QureLoadTest.class);
+        app.setWebApplicationType(WebApplicationType.NONE);
+        try (ConfigurableApplicationContext context = app.run(args)) {
+            LoadTestSettings settings = Binder.get(context.getEnvironment())
+                    .bind("loadtest", LoadTestSettings.class)
+                    .orElseGet(LoadTestSettings::new);
+            run(settings, context);
+        }
+    }
+
+    private static void run(LoadTestSettings settings, ConfigurableApplicationContext context) throws IOException {
+        FakeQureServer server = new FakeQureServer(settings.getServer(), context.getBean(ObjectMapper.class));
+        server.start();
+        context.getBean(QureConfiguration.class).setBaseUrl(server.getBaseUrl());
+        Path workDirectory = Files.createTempDirectory("qure-loadtest");
+        try {
+            List<QureStudy> studies = createStudies(settings, workDirectory);
+            log.info("processing {} studies with a concurrency of {}", studies.size(), settings.getConcurrency());
+
+            QureService qureService = context.getBean(QureService.class);
+            LoadTestReport report = new LoadTestReport();
+            Flux.fromIterable(studies)
+                    .flatMap(study -> process(qureService, study, report), settings.getConcurrency())
+                    .then()
+                    .block();
+
+            log.info(report.toString());
+            log.info(server.toString());
+        } finally {
+            server.stop();
+            deleteDirectory(workDirectory);
+        }
+    }
+
+    private static Mono<Path> process(QureService qureService, QureStudy study, LoadTestReport report) {
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            return qureService.process(study)
+                    .doOnSuccess(outputPath -> report.recordSuccess(Duration.ofNanos(System.nanoTime() - startNanos)))
+                    .onErrorResume(e -> {
+                        log.debug("study {} failed", study.getInstanceUid(), e);
+                        report.recordFailure();
+                        return Mono.empty();
+                    });
+        });
+    }
+
+    /**
+     * Writes the synthetic files: a DICOM preamble followed by random content, named after their instance UID.
+     */
+    private static List<QureStudy> createStudies(LoadTestSettings settings, Path workDirectory) throws IOException {
+        Path inputDirectory = Files.createDirectories(workDirectory.resolve("input"));
+        Path outputDirectory = Files.createDirectories(workDirectory.resolve("output"));
+        Random random = new Random();
+        byte[] magic = "DICM".getBytes(StandardCharsets.US_ASCII);
+        byte[] content = new byte[Math.max(settings.getFileSize(), PREAMBLE_SIZE + magic.length)];
+        List<QureStudy> studies = new ArrayList<>(settings.getStudies());
+        for (int i = 0; i < settings.getStudies(); i++) {
+            random.nextBytes(content);
+            System.arraycopy(magic, 0, content, PREAMBLE_SIZE, magic.length);
+            String instanceUid = UID_ROOT + i;
+            Path inputPath = Files.write(inputDirectory.resolve(instanceUid + ".dcm"), content);
+            studies.add(new QureStudy(inputPath, instanceUid, outputDirectory.resolve(instanceUid + ".dcm")));
+        }
+        return studies;
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.incepto.quredemo.startup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.LoggerFactory;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures the time-to-first-request of a command line run: from the launch of its JVM to its upload request
+ * reaching a local server, with the default start-up and then with the {@code fast-start} profile.
+ * <p>
+ * Each run is a new JVM launched on the classpath of the benchmark and killed once its upload arrived. The
+ * {@code startup.runs} property sets the runs measured per variant, after {@code startup.warmups} runs which warm the
+ * file system cache. The JVM options of {@code startup.jvmArgs} are added to the fast-start runs, such as the
+ * {@code -XX:SharedArchiveFile} of a class data sharing archive.
+ */
+@Slf4j
+public class StartupBenchmark {
+
+    private static final String APPLICATION_CLASS = "com.incepto.quredemo.QureApplication";
+    private static final String FAST_START_PROFILE = "fast-start";
+    private static final String INSTANCE_UID = "1.2.826.0.1.3680043.10.1";
+    private static final Duration RUN_TIMEOUT = Duration.ofMinutes(2);
+
+    private volatile CompletableFuture<Long> firstUpload = new CompletableFuture<>();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // logback logs everything at debug level when it is not configured by Spring Boot
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        int runs = Integer.getInteger("startup.runs", 10);
+        int warmups = Integer.getInteger("startup.warmups", 1);
+        List<String> jvmArgs = Arrays.stream(System.getProperty("startup.jvmArgs", "").split("\\s+"))
+                .filter(arg -> !arg.isEmpty())
+                .collect(Collectors.toList());
+        new StartupBenchmark().run(runs, warmups, jvmArgs);
+    }
+
+    private void run(int runs, int warmups, List<String> jvmArgs) throws IOException, InterruptedException {
+        DisposableServer server = HttpServer.create()
+                .host("localhost")
+                .port(0)
+                .route(routes -> routes.post("/studies/", (request, response) -> {
+                    // the health probe posts a JSON body, only the upload is awaited
+                    if (request.requestHeaders().get(HttpHeaderNames.CONTENT_TYPE, "").startsWith("multipart/related")) {
+                        firstUpload.complete(System.nanoTime());
+                    }
+                    return request.receive().then(response.status(HttpResponseStatus.BAD_REQUEST).send());
+                }))
+                .bindNow();
+        Path workDirectory = Files.createTempDirectory("qure-startup");
+        try {
+            Path inputPath = createStudy(workDirectory);
+            List<String> arguments = List.of(
+                    "--incepto.qure.baseUrl=http://localhost:" + server.port() + "/",
+                    "--incepto.qure.authorization=Token 0123456789abcdef",
+                    "--incepto.qure.inputPath=" + inputPath,
+                    "--incepto.qure.outputPath=" + workDirectory.resolve("output.dcm"),
+                    "--incepto.qure.instanceUid=" + INSTANCE_UID);
+            List<String> fastStartArguments = new ArrayList<>(arguments);
+            fastStartArguments.add("--spring.profiles.active=" + FAST_START_PROFILE);
+
+            long[] defaultStart = measure(List.of(), arguments, runs, warmups, workDirectory);
+            long[] fastStart = measure(jvmArgs, fastStartArguments, runs, warmups, workDirectory);
+            log.info("time-to-first-request of {} runs: default {}, fast-start {}{} ({}% of the default median)",
+                    runs, summary(defaultStart), summary(fastStart), jvmArgs.isEmpty() ? "" : " with " + jvmArgs,
+                    100 * median(fastStart) / Math.max(median(defaultStart), 1));
+        } finally {
+            server.disposeNow();
+            deleteDirectory(workDirectory);
+        }
+    }
+
+    /**
+     * Returns the sorted times-to-first-request of the runs, in milliseconds.
+     */
+    private long[] measure(List<String> jvmArgs, List<String> arguments, int runs, int warmups, Path workDirectory)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        // the runs are launched from the work directory
+        command.add(Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> Path.of(entry).toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator)));
+        command.add(APPLICATION_CLASS);
+        command.addAll(arguments);
+        long[] millis = new long[runs];
+        for (int i = -warmups; i < runs; i++) {
+            long elapsed = launch(command, workDirectory);
+            if (i >= 0) {
+                millis[i] = elapsed;
+            }
+        }
+        Arrays.sort(millis);
+        return millis;
+    }
+
+    private long launch(List<String> command, Path workDirectory) throws IOException, InterruptedException {
+        firstUpload = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        // the working directory holds no application.yml, the run only gets its arguments
+        Process process = new ProcessBuilder(command)
+                .directory(workDirectory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(firstUpload.get(RUN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS) - startNanos);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("no upload received from " + String.join(" ", command), e);
+        } finally {
+            process.destroyForcibly().waitFor();
+        }
+    }
+
+    /**
+     * Writes a synthetic file: a DICOM preamble followed by random content.
+     */
+    private static Path createStudy(Path workDirectory) throws IOException {
+        byte[] content = new byte[4096];
+        new Random().nextBytes(content);
+        byte[] magic = "DICM".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, content, 128, magic.length);
+        return Files.write(workDirectory.resolve(INSTANCE_UID + ".dcm"), content);
+    }
+
+    private static String summary(long[] millis) {
+        return String.format("median %d ms (min %d ms, max %d ms)", median(millis), millis[0], millis[millis.length - 1]);
+    }
+
+    private static long median(long[] sortedMillis) {
+        return sortedMillis[sortedMillis.length / 2];
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -1,28 +1,72 @@
 package com.incepto.quredemo;
 
+import com.incepto.quredemo.client.QureMetrics;
+import com.incepto.quredemo.config.QureConfiguration;
+import com.incepto.quredemo.service.v1.QureBatchService;
 import com.incepto.quredemo.service.v1.QureService;
+import com.incepto.quredemo.service.v1.QureWatchService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.web.reactive.config.EnableWebFlux;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
 @SpringBootApplication
-@EnableWebFlux
 public class QureApplication implements CommandLineRunner {
 
     @Autowired
     QureService qureService;
 
+    @Autowired
+    QureBatchService qureBatchService;
+
+    @Autowired
+    QureWatchService qureWatchService;
+
+    @Autowired
+    QureConfiguration qureConfiguration;
+
+    @Autowired
+    QureMetrics qureMetrics;
+
     public static void main(String[] args) {
         SpringApplication app = new SpringApplication(QureApplication.class);
         app.setWebApplicationType(WebApplicationType.NONE);
+        // the STOW-RS receiver needs the server, spring.main.web-application-type still overrides it
+        app.addListeners((ApplicationListener<ApplicationEvent>) event -> {
+            if (event instanceof ApplicationEnvironmentPreparedEvent && ((ApplicationEnvironmentPreparedEvent) event)
+                    .getEnvironment().getProperty("incepto.qure.stow.enabled", Boolean.class, false)) {
+                app.setWebApplicationType(WebApplicationType.REACTIVE);
+            }
+        });
         app.run(args);
     }
 
     @Override
-    public void run(String... strings) {
-        qureService.process();
+    public void run(String... strings) throws IOException {
+        if (qureConfiguration.getStow().isEnabled()) {
+            // the server keeps running and handles the STOW-RS requests
+            return;
+        }
+        try {
+            if (qureConfiguration.getWatch().isEnabled()) {
+                qureWatchService.run();
+            } else if (qureConfiguration.getBatch().isEnabled()) {
+                qureBatchService.process();
+            } else {
+                qureService.process();
+            }
+        } finally {
+            if (!qureConfiguration.getMetricsPath().isEmpty()) {
+                qureMetrics.dump(Path.of(qureConfiguration.getMetricsPath()));
+            }
+        }
     }
 
 
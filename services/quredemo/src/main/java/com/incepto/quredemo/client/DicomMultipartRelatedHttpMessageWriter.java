@@ -9,6 +9,7 @@ import org.springframework.core.codec.Hints;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.PooledDataBuffer;
 import org.springframework.core.log.LogFormatUtils;
 import org.springframework.http.HttpEntity;
@@ -27,19 +28,28 @@ import org.springframework.util.MultiValueMap;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
+/**
+ * Writes multipart/related DICOM bodies.
+ * <p>
+ * A writer is meant to be shared by every request: the part writer chosen for a body type is cached and the
+ * header names and values common to every part are encoded once, so that each part only costs its boundary line,
+ * an exactly sized header buffer and its content.
+ */
 @SuppressWarnings({"PMD.ExcessiveImports", "PMD.DataClass", "PMD.TooManyMethods", "PMD.DataClass"})
 public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport implements HttpMessageWriter<MultiValueMap<String, ?>> {
 
@@ -53,11 +63,31 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
 
     static final MediaType MULTIPART_RELATED_MEDIA_TYPE = new MediaType("multipart", "related");
     private static final String APPLICATION_DICOM_CONTENT_TYPE = "\"application/dicom\"";
+    private static final String PART_CONTENT_TYPE = "application/dicom";
+    private static final MediaType PART_MEDIA_TYPE = MediaType.parseMediaType(PART_CONTENT_TYPE);
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+
+    /** Header names and values written for every part, encoded once with the default charset. */
+    private static final Map<String, byte[]> PRE_ENCODED_HEADERS = preEncode(
+            HttpHeaders.CONTENT_DISPOSITION, HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH,
+            PART_CONTENT_TYPE, "form-data");
 
     private final List<HttpMessageWriter<?>> partWriters;
 
+    /** Part writer found for each body type of the parts with the DICOM content type. */
+    private final Map<ResolvableType, HttpMessageWriter<?>> partWritersByType = new ConcurrentHashMap<>();
+
+    /**
+     * Size of the chunks read from disk when a part is backed by a file.
+     */
+    public static final int DEFAULT_FILE_CHUNK_SIZE = 64 * 1024;
+
     private Charset charset = DEFAULT_CHARSET;
 
+    private int fileChunkSize = DEFAULT_FILE_CHUNK_SIZE;
+
     private final List<MediaType> supportedMediaTypes;
 
     public DicomMultipartRelatedHttpMessageWriter() {
@@ -86,6 +116,14 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
         return Collections.unmodifiableList(result);
     }
 
+    private static Map<String, byte[]> preEncode(String... values) {
+        Map<String, byte[]> encoded = new HashMap<>();
+        for (String value : values) {
+            encoded.put(value, value.getBytes(DEFAULT_CHARSET));
+        }
+        return Collections.unmodifiableMap(encoded);
+    }
+
     public List<HttpMessageWriter<?>> getPartWriters() {
         return Collections.unmodifiableList(this.partWriters);
     }
@@ -99,6 +137,15 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
         return this.charset;
     }
 
+    public void setFileChunkSize(int fileChunkSize) {
+        Assert.isTrue(fileChunkSize > 0, "File chunk size must be positive");
+        this.fileChunkSize = fileChunkSize;
+    }
+
+    public int getFileChunkSize() {
+        return this.fileChunkSize;
+    }
+
     @Override
     public List<MediaType> getWritableMediaTypes() {
         return this.supportedMediaTypes;
@@ -118,6 +165,7 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
 
     private Mono<Void> writeMultipart(MultiValueMap<String, ?> map, ReactiveHttpOutputMessage outputMessage, Map<String, Object> hints) {
         byte[] boundary = generateMultipartBoundary();
+        byte[] boundaryLine = boundaryLine(boundary);
 
         outputMessage.getHeaders().setContentType(buildContentType(boundary));
 
@@ -129,8 +177,8 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
         DataBufferFactory bufferFactory = outputMessage.bufferFactory();
 
         Flux<DataBuffer> body = Flux.fromIterable(map.entrySet())
-                .concatMap(entry -> encodePartValues(boundary, entry.getKey(), entry.getValue(), bufferFactory))
-                .concatWith(generateLastLine(boundary, bufferFactory))
+                .concatMap(entry -> encodePartValues(boundaryLine, entry.getKey(), entry.getValue(), bufferFactory))
+                .concatWith(generateLine(lastLine(boundary), bufferFactory))
                 .doOnDiscard(PooledDataBuffer.class, PooledDataBuffer::release);
 
         return outputMessage.writeWith(body);
@@ -141,10 +189,12 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
     }
 
     private Flux<DataBuffer> encodePartValues(
-            byte[] boundary, String name, List<?> values, DataBufferFactory bufferFactory) {
+            byte[] boundaryLine, String name, List<?> values, DataBufferFactory bufferFactory) {
 
-        return Flux.concat(values.stream().map(v ->
-                encodePart(boundary, name, v, bufferFactory)).collect(Collectors.toList()));
+        if (values.size() == 1) {
+            return encodePart(boundaryLine, name, values.get(0), bufferFactory);
+        }
+        return Flux.fromIterable(values).concatMap(value -> encodePart(boundaryLine, name, value, bufferFactory));
     }
 
     protected List<String> buildPartContentDisposition(String name) {
@@ -152,7 +202,7 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
     }
 
     protected List<String> buildPartContentType() {
-        return List.of("application/dicom");
+        return List.of(PART_CONTENT_TYPE);
     }
 
     protected MediaType buildContentType(byte[] boundary) {
@@ -164,7 +214,7 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
     }
 
     @SuppressWarnings("unchecked")
-    private <T> Flux<DataBuffer> encodePart(byte[] boundary, String name, T value, DataBufferFactory bufferFactory) {
+    private <T> Flux<DataBuffer> encodePart(byte[] boundaryLine, String name, T value, DataBufferFactory bufferFactory) {
         MultipartHttpOutputMessage outputMessage = new MultipartHttpOutputMessage(bufferFactory, this.getCharset());
         HttpHeaders outputHeaders = outputMessage.getHeaders();
 
@@ -201,14 +251,18 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
             }
         }
 
-        MediaType contentType = outputHeaders.getContentType();
-
-        final ResolvableType finalBodyType = resolvableType;
-        Optional<HttpMessageWriter<?>> writer = this.partWriters.stream()
-                .filter(partWriter -> partWriter.canWrite(finalBodyType, contentType))
-                .findFirst();
+        if (body instanceof Resource && ((Resource) body).isFile()) {
+            return Flux.concat(
+                    generateLine(boundaryLine, bufferFactory),
+                    encodeFilePart((Resource) body, outputMessage),
+                    generateLine(CRLF, bufferFactory));
+        }
 
-        if (writer.isEmpty()) {
+        // the content type set for every part is not parsed again
+        String contentTypeValue = outputHeaders.getFirst(HttpHeaders.CONTENT_TYPE);
+        MediaType contentType = PART_CONTENT_TYPE.equals(contentTypeValue) ? PART_MEDIA_TYPE : outputHeaders.getContentType();
+        HttpMessageWriter<?> writer = findPartWriter(resolvableType, contentType);
+        if (writer == null) {
             return Flux.error(new CodecException("No suitable writer found for part: " + name));
         }
 
@@ -218,7 +272,7 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
         // The writer will call MultipartHttpOutputMessage#write which doesn't actually write
         // but only stores the body Flux and returns Mono.empty().
 
-        Mono<Void> partContentReady = ((HttpMessageWriter<T>) writer.get())
+        Mono<Void> partContentReady = ((HttpMessageWriter<T>) writer)
                 .write(bodyPublisher, resolvableType, contentType, outputMessage, DEFAULT_HINTS);
 
         // After partContentReady, we can access the part content from MultipartHttpOutputMessage
@@ -227,46 +281,77 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
         Flux<DataBuffer> partContent = partContentReady.thenMany(Flux.defer(outputMessage::getBody));
 
         return Flux.concat(
-                generateBoundaryLine(boundary, bufferFactory),
+                generateLine(boundaryLine, bufferFactory),
                 partContent,
-                generateNewLine(bufferFactory));
+                generateLine(CRLF, bufferFactory));
     }
 
-    private Mono<DataBuffer> generateBoundaryLine(byte[] boundary, DataBufferFactory bufferFactory) {
-        return Mono.fromCallable(() -> {
-            DataBuffer buffer = bufferFactory.allocateBuffer(boundary.length + 4);
-            buffer.write((byte)'-');
-            buffer.write((byte)'-');
-            buffer.write(boundary);
-            buffer.write((byte)'\r');
-            buffer.write((byte)'\n');
-            return buffer;
-        });
+    @Nullable
+    private HttpMessageWriter<?> findPartWriter(ResolvableType bodyType, @Nullable MediaType contentType) {
+        if (PART_MEDIA_TYPE.equals(contentType)) {
+            return this.partWritersByType.computeIfAbsent(bodyType, type -> searchPartWriter(type, contentType));
+        }
+        return searchPartWriter(bodyType, contentType);
     }
 
-    private Mono<DataBuffer> generateNewLine(DataBufferFactory bufferFactory) {
-        return Mono.fromCallable(() -> {
-            DataBuffer buffer = bufferFactory.allocateBuffer(2);
-            buffer.write((byte)'\r');
-            buffer.write((byte)'\n');
-            return buffer;
-        });
+    @Nullable
+    private HttpMessageWriter<?> searchPartWriter(ResolvableType bodyType, @Nullable MediaType contentType) {
+        for (HttpMessageWriter<?> partWriter : this.partWriters) {
+            if (partWriter.canWrite(bodyType, contentType)) {
+                return partWriter;
+            }
+        }
+        return null;
     }
 
-    private Mono<DataBuffer> generateLastLine(byte[] boundary, DataBufferFactory bufferFactory) {
-        return Mono.fromCallable(() -> {
-            DataBuffer buffer = bufferFactory.allocateBuffer(boundary.length + 6);
-            buffer.write((byte)'-');
-            buffer.write((byte)'-');
-            buffer.write(boundary);
-            buffer.write((byte)'-');
-            buffer.write((byte)'-');
-            buffer.write((byte)'\r');
-            buffer.write((byte)'\n');
-            return buffer;
+    /**
+     * Streams a file backed part from disk, only a few chunks are held in memory whatever the file size.
+     */
+    private Flux<DataBuffer> encodeFilePart(Resource resource, MultipartHttpOutputMessage outputMessage) {
+        return Flux.defer(() -> {
+            Path path;
+            try {
+                path = resource.getFile().toPath();
+                outputMessage.getHeaders().setContentLength(Files.size(path));
+            } catch (IOException e) {
+                return Flux.error(e);
+            }
+            Flux<DataBuffer> content = resource instanceof DigestingFileSystemResource
+                    ? ((DigestingFileSystemResource) resource).read(outputMessage.bufferFactory(), this.fileChunkSize)
+                    : DataBufferUtils.read(path, outputMessage.bufferFactory(), this.fileChunkSize);
+            return outputMessage.writeWith(content).thenMany(Flux.defer(outputMessage::getBody));
         });
     }
 
+    private static byte[] boundaryLine(byte[] boundary) {
+        byte[] line = new byte[boundary.length + 4];
+        line[0] = '-';
+        line[1] = '-';
+        System.arraycopy(boundary, 0, line, 2, boundary.length);
+        line[line.length - 2] = '\r';
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    private static byte[] lastLine(byte[] boundary) {
+        byte[] line = new byte[boundary.length + 6];
+        line[0] = '-';
+        line[1] = '-';
+        System.arraycopy(boundary, 0, line, 2, boundary.length);
+        line[line.length - 4] = '-';
+        line[line.length - 3] = '-';
+        line[line.length - 2] = '\r';
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    /**
+     * Wraps a line encoded once per request or once for all, it is never modified once written.
+     */
+    private static Mono<DataBuffer> generateLine(byte[] line, DataBufferFactory bufferFactory) {
+        return Mono.fromCallable(() -> bufferFactory.wrap(line));
+    }
+
     private static class MultipartHttpOutputMessage implements ReactiveHttpOutputMessage {
         private final DataBufferFactory dataBufferFactory;
         private final Charset charset;
@@ -310,27 +395,39 @@ public class DicomMultipartRelatedHttpMessageWriter extends LoggingCodecSupport
             }
         }
 
+        /**
+         * Encodes the headers first so that the buffer is allocated with their exact size.
+         */
         private Mono<DataBuffer> generateHeaders() {
             return Mono.fromCallable(() -> {
-                DataBuffer buffer = this.dataBufferFactory.allocateBuffer();
+                List<byte[]> encodedHeaders = new ArrayList<>(this.headers.size() * 2);
+                int size = CRLF.length;
                 for (Map.Entry<String, List<String>> entry : this.headers.entrySet()) {
-                    byte[] headerName = entry.getKey().getBytes(this.charset);
+                    byte[] headerName = encode(entry.getKey());
                     for (String headerValueString : entry.getValue()) {
-                        byte[] headerValue = headerValueString.getBytes(this.charset);
-                        buffer.write(headerName);
-                        buffer.write((byte)':');
-                        buffer.write((byte)' ');
-                        buffer.write(headerValue);
-                        buffer.write((byte)'\r');
-                        buffer.write((byte)'\n');
+                        byte[] headerValue = encode(headerValueString);
+                        encodedHeaders.add(headerName);
+                        encodedHeaders.add(headerValue);
+                        size += headerName.length + HEADER_SEPARATOR.length + headerValue.length + CRLF.length;
                     }
                 }
-                buffer.write((byte)'\r');
-                buffer.write((byte)'\n');
+                DataBuffer buffer = this.dataBufferFactory.allocateBuffer(size);
+                for (int i = 0; i < encodedHeaders.size(); i += 2) {
+                    buffer.write(encodedHeaders.get(i));
+                    buffer.write(HEADER_SEPARATOR);
+                    buffer.write(encodedHeaders.get(i + 1));
+                    buffer.write(CRLF);
+                }
+                buffer.write(CRLF);
                 return buffer;
             });
         }
 
+        private byte[] encode(String value) {
+            byte[] encoded = DEFAULT_CHARSET.equals(this.charset) ? PRE_ENCODED_HEADERS.get(value) : null;
+            return encoded != null ? encoded : value.getBytes(this.charset);
+        }
+
         @Override
         public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
             return Mono.error(new UnsupportedOperationException());
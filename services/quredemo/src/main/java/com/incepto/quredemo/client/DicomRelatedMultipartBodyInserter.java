@@ -7,18 +7,26 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.http.client.reactive.ClientHttpRequest;
 import org.springframework.http.codec.HttpMessageWriter;
+import org.springframework.util.ConcurrentReferenceHashMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.reactive.function.BodyInserter;
 import org.springframework.web.reactive.function.BodyInserters;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+import java.util.Map;
+
 public class DicomRelatedMultipartBodyInserter  implements BodyInserters.MultipartInserter {
 
     private static final ResolvableType MULTIPART_RELATED_DATA_TYPE = ResolvableType.forClassWithGenerics(MultiValueMap.class, String.class, Object.class);
 
+    /** Writers shared by the requests of a same client, which always pass the same codecs. */
+    private static final Map<List<HttpMessageWriter<?>>, HttpMessageWriter<MultiValueMap<String, ?>>> MESSAGE_WRITERS =
+            new ConcurrentReferenceHashMap<>();
+
     private final MultipartBodyBuilder builder;
 
-    DicomRelatedMultipartBodyInserter() {
+    public DicomRelatedMultipartBodyInserter() {
         this.builder = new MultipartBodyBuilder();
     }
 
@@ -62,6 +70,6 @@ public class DicomRelatedMultipartBodyInserter  implements BodyInserters.Multipa
     }
 
     protected HttpMessageWriter<MultiValueMap<String, ?>> buildMessageWriter(BodyInserter.Context context) {
-        return new DicomMultipartRelatedHttpMessageWriter(context.messageWriters());
+        return MESSAGE_WRITERS.computeIfAbsent(context.messageWriters(), DicomMultipartRelatedHttpMessageWriter::new);
     }
 }
@@ -0,0 +1,104 @@
+package com.incepto.quredemo.client;
+
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.lang.Nullable;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * File part whose SHA-256 is computed from the chunks streamed by the multipart writer,
+ * so that hashing the file does not need another read. The SHA-256 of its first {@value #HEAD_SIZE} bytes, the key
+ * of the upload index, is computed from the same chunks.
+ */
+public class DigestingFileSystemResource extends FileSystemResource {
+
+    static final int HEAD_SIZE = DicomMultipartRelatedHttpMessageWriter.DEFAULT_FILE_CHUNK_SIZE;
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private final MessageDigest messageDigest;
+    private final MessageDigest headDigest;
+    private long streamedBytes;
+
+    @Nullable
+    private final QureMemoryBudget memoryBudget;
+
+    public DigestingFileSystemResource(Path path) {
+        this(path, null);
+    }
+
+    /**
+     * The chunks of the file are then read within the memory budget of the uploads and downloads in flight.
+     */
+    public DigestingFileSystemResource(Path path, @Nullable QureMemoryBudget memoryBudget) {
+        super(path);
+        this.messageDigest = newMessageDigest();
+        this.headDigest = newMessageDigest();
+        this.memoryBudget = memoryBudget;
+    }
+
+    static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Reads the file as chunks, digested as they are read.
+     */
+    Flux<DataBuffer> read(DataBufferFactory bufferFactory, int chunkSize) {
+        Flux<DataBuffer> content = memoryBudget != null && memoryBudget.isEnabled()
+                ? memoryBudget.read(getFile().toPath(), chunkSize)
+                : DataBufferUtils.read(getFile().toPath(), bufferFactory, chunkSize);
+        return content.doOnSubscribe(subscription -> reset())
+                .doOnNext(this::update);
+    }
+
+    void reset() {
+        messageDigest.reset();
+        headDigest.reset();
+        streamedBytes = 0;
+    }
+
+    void update(DataBuffer dataBuffer) {
+        // asByteBuffer returns a view, the buffer read position is not moved
+        ByteBuffer content = dataBuffer.asByteBuffer();
+        if (streamedBytes < HEAD_SIZE) {
+            ByteBuffer head = content.duplicate();
+            head.limit(head.position() + (int) Math.min(head.remaining(), HEAD_SIZE - streamedBytes));
+            headDigest.update(head);
+        }
+        streamedBytes += content.remaining();
+        messageDigest.update(content);
+    }
+
+    /**
+     * Returns the number of bytes streamed so far, the file size once the upload completed.
+     */
+    public long getStreamedBytes() {
+        return streamedBytes;
+    }
+
+    /**
+     * Returns the digest of the first {@value #HEAD_SIZE} bytes streamed, to be called once the upload completed.
+     */
+    public byte[] headDigest() {
+        return headDigest.digest();
+    }
+
+    /**
+     * Returns the digest of the content streamed so far, to be called once the upload completed.
+     */
+    public byte[] digest() {
+        return messageDigest.digest();
+    }
+}
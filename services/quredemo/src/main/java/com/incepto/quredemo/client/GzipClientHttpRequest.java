@@ -0,0 +1,154 @@
+package com.incepto.quredemo.client;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.http.client.reactive.ClientHttpRequestDecorator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the request body with gzip as it is written, with a {@code Content-Encoding: gzip} header.
+ * <p>
+ * Each buffer of the body is deflated as it arrives and released, so only the deflater window is kept in memory
+ * whatever the size of the body. The sizes before and after compression and the time spent deflating are reported
+ * once the body is complete.
+ */
+public class GzipClientHttpRequest extends ClientHttpRequestDecorator {
+
+    private static final String GZIP = "gzip";
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_SIZE = 8;
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+    private final int level;
+    private final CompressionListener listener;
+
+    public GzipClientHttpRequest(ClientHttpRequest delegate, int level, CompressionListener listener) {
+        super(delegate);
+        this.level = level;
+        this.listener = listener;
+    }
+
+    @Override
+    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+        getHeaders().set(HttpHeaders.CONTENT_ENCODING, GZIP);
+        getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+        return super.writeWith(Flux.defer(() -> {
+            GzipStream gzip = new GzipStream(bufferFactory(), level);
+            return Flux.<DataBuffer>from(body)
+                    .map(gzip::compress)
+                    .concatWith(Mono.fromCallable(() -> {
+                        DataBuffer trailer = gzip.finish();
+                        listener.compressed(gzip.rawBytes, gzip.compressedBytes, Duration.ofNanos(gzip.deflateNanos));
+                        return trailer;
+                    }))
+                    .filter(buffer -> {
+                        if (buffer.readableByteCount() == 0) {
+                            DataBufferUtils.release(buffer);
+                            return false;
+                        }
+                        return true;
+                    })
+                    .doFinally(signal -> gzip.end());
+        }));
+    }
+
+    @Override
+    public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+        return writeWith(Flux.from(body).concatMap(Flux::from));
+    }
+
+    /**
+     * Receives the statistics of a compressed body.
+     */
+    @FunctionalInterface
+    public interface CompressionListener {
+
+        void compressed(long rawBytes, long compressedBytes, Duration deflateTime);
+    }
+
+    /**
+     * Gzip member written buffer by buffer: the header with the first one, the CRC-32 and the size in the trailer.
+     */
+    private static class GzipStream {
+
+        private final DataBufferFactory bufferFactory;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+        private boolean headerWritten;
+        private long rawBytes;
+        private long compressedBytes;
+        private long deflateNanos;
+
+        GzipStream(DataBufferFactory bufferFactory, int level) {
+            this.bufferFactory = bufferFactory;
+            this.deflater = new Deflater(level, true);
+        }
+
+        DataBuffer compress(DataBuffer input) {
+            try {
+                long start = System.nanoTime();
+                ByteBuffer content = input.asByteBuffer();
+                rawBytes += content.remaining();
+                crc.update(content.duplicate());
+                deflater.setInput(content);
+                DataBuffer output = bufferFactory.allocateBuffer(Math.max(input.readableByteCount() / 2, GZIP_HEADER.length));
+                writeHeader(output);
+                while (!deflater.needsInput()) {
+                    drain(output);
+                }
+                deflateNanos += System.nanoTime() - start;
+                return output;
+            } finally {
+                DataBufferUtils.release(input);
+            }
+        }
+
+        DataBuffer finish() {
+            long start = System.nanoTime();
+            DataBuffer output = bufferFactory.allocateBuffer(GZIP_HEADER.length + TRAILER_SIZE + SCRATCH_SIZE / 4);
+            writeHeader(output);
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(output);
+            }
+            writeIntLittleEndian(output, (int) crc.getValue());
+            writeIntLittleEndian(output, (int) rawBytes);
+            compressedBytes += TRAILER_SIZE;
+            deflateNanos += System.nanoTime() - start;
+            return output;
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        private void writeHeader(DataBuffer output) {
+            if (!headerWritten) {
+                output.write(GZIP_HEADER);
+                compressedBytes += GZIP_HEADER.length;
+                headerWritten = true;
+            }
+        }
+
+        private void drain(DataBuffer output) {
+            int deflated = deflater.deflate(scratch);
+            output.write(scratch, 0, deflated);
+            compressedBytes += deflated;
+        }
+
+        private static void writeIntLittleEndian(DataBuffer output, int value) {
+            output.write(new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Holds the calls to Qure while it is known to be down, instead of letting each one wait for its timeout.
+ * <p>
+ * The breaker opens when the health probe fails or after {@code failureThreshold} calls in a row fail to reach
+ * Qure, and closes when the health probe succeeds again. While it is open, a call waits for it to close, without
+ * sending anything, for at most {@code queueTimeout}; it fails right away when that timeout is zero.
+ */
+@Slf4j
+@Component
+public class QureCircuitBreaker {
+
+    private final QureConfiguration qureConfiguration;
+
+    /**
+     * Completed when the breaker closes, null while it is closed.
+     */
+    @Nullable
+    private MonoProcessor<Void> closing;
+    private int consecutiveFailures;
+
+    public QureCircuitBreaker(QureConfiguration qureConfiguration, MeterRegistry meterRegistry) {
+        this.qureConfiguration = qureConfiguration;
+        meterRegistry.gauge("qure.client.available", this, breaker -> breaker.isOpen() ? 0 : 1);
+    }
+
+    public synchronized boolean isOpen() {
+        return closing != null;
+    }
+
+    public <T> Mono<T> guard(Mono<T> call) {
+        if (!qureConfiguration.getHealth().isEnabled()) {
+            return call;
+        }
+        return awaitClosed().then(call
+                .doOnSuccess(value -> recordSuccess())
+                .doOnError(this::recordFailure));
+    }
+
+    public <T> Flux<T> guard(Flux<T> call) {
+        if (!qureConfiguration.getHealth().isEnabled()) {
+            return call;
+        }
+        return awaitClosed().thenMany(call
+                .doOnComplete(this::recordSuccess)
+                .doOnError(this::recordFailure));
+    }
+
+    public void open(String reason) {
+        synchronized (this) {
+            if (closing != null) {
+                return;
+            }
+            closing = MonoProcessor.create();
+        }
+        log.warn("Qure is unavailable ({}), holding the requests until it answers again", reason);
+    }
+
+    public void close() {
+        MonoProcessor<Void> closed;
+        synchronized (this) {
+            closed = closing;
+            closing = null;
+            consecutiveFailures = 0;
+        }
+        if (closed != null) {
+            log.info("Qure is available again");
+            closed.onComplete();
+        }
+    }
+
+    private Mono<Void> awaitClosed() {
+        return Mono.defer(() -> {
+            MonoProcessor<Void> closed;
+            synchronized (this) {
+                closed = closing;
+            }
+            if (closed == null) {
+                return Mono.empty();
+            }
+            Duration queueTimeout = qureConfiguration.getHealth().getQueueTimeout();
+            Mono<Void> unavailable = Mono.error(() -> new QureConnectionException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Qure is unavailable"));
+            return queueTimeout.isZero() ? unavailable : closed.timeout(queueTimeout, unavailable);
+        });
+    }
+
+    private synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    private void recordFailure(Throwable error) {
+        if (!isConnectionFailure(error)) {
+            return;
+        }
+        boolean open;
+        synchronized (this) {
+            consecutiveFailures++;
+            open = consecutiveFailures >= qureConfiguration.getHealth().getFailureThreshold();
+        }
+        if (open) {
+            open(consecutiveFailures + " failed requests in a row");
+        }
+    }
+
+    /**
+     * Timeouts and I/O errors, the ones wrapped by the client and the raw ones.
+     */
+    private static boolean isConnectionFailure(Throwable error) {
+        Throwable cause = error instanceof QureConnectionException ? error.getCause() : error;
+        return cause instanceof TimeoutException || cause instanceof IOException;
+    }
+}
@@ -8,23 +8,27 @@ import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.reactive.ClientHttpRequest;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserter;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
-import reactor.netty.tcp.SslProvider;
-import reactor.netty.tcp.TcpClient;
 
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.incepto.quredemo.client.DicomMultipartRelatedHttpMessageWriter.MULTIPART_RELATED_MEDIA_TYPE;
 
@@ -36,87 +40,284 @@ public class QureClient {
     private static final String STUDIES_ENDPOINT = "studies/";
     private static final String RESULTS_ENDPOINT = "results/";
 
+    /**
+     * Request attribute holding the name of the endpoint, used to tag the request metrics.
+     */
+    public static final String ENDPOINT_ATTRIBUTE = QureClient.class.getName() + ".endpoint";
+    static final String UPLOAD = "upload";
+    static final String PING = "ping";
+    static final String RESULTS = "results";
+    static final String DOWNLOAD = "download";
+
     private final QureConfiguration qureConfiguration;
 
-    public static WebClient create(String baseUrl) {
-        var tcpClient = TcpClient.create().secure(SslProvider.defaultClientProvider());
-        var httpClient = HttpClient.from(tcpClient).followRedirect(true);
-        return WebClient.builder()
-                .baseUrl(baseUrl)
-                .clientConnector(new ReactorClientHttpConnector(httpClient)).build();
-    }
+    private final WebClient qureWebClient;
+
+    private final QureResultCache qureResultCache;
+
+    private final QureUploadIndex qureUploadIndex;
+
+    private final QureObjectDownloader qureObjectDownloader;
+
+    private final QureRequestLimiter qureRequestLimiter;
+
+    private final QureCircuitBreaker qureCircuitBreaker;
+
+    private final QureMetrics qureMetrics;
+
+    private final QureMemoryBudget qureMemoryBudget;
 
     public Mono<QureSeriesResponseDto> upload(Path path, String sopInstanceUid, boolean withFix) {
-        try {
-            WebClient client = create(qureConfiguration.getBaseUrl());
-            byte[] array = Files.readAllBytes(path);
-
-            BodyInserter<?, ? super ClientHttpRequest> bodyInserter;
-            if(withFix) {
-                bodyInserter = new QureDicomRelatedMultipartBodyInserter().with(sopInstanceUid, array);
-            } else {
-                bodyInserter = new DicomRelatedMultipartBodyInserter().with(sopInstanceUid, array);
+        return uploadParts(List.of(new QureDicomInstance(sopInstanceUid, path)), withFix);
+    }
+
+    /**
+     * Uploads the instances as the parts of as few multipart/related requests as possible,
+     * a new request being started when the configured maximum parts or bytes per request is reached.
+     */
+    public Flux<QureSeriesResponseDto> upload(Collection<QureDicomInstance> instances, boolean withFix) {
+        return Flux.defer(() -> {
+            try {
+                return Flux.fromIterable(splitRequests(instances));
+            } catch (IOException e) {
+                return Flux.error(new RuntimeException("Could not read file size when uploading to Qure", e));
             }
+        }).concatMap(requestInstances -> uploadParts(requestInstances, withFix));
+    }
 
-            log.info("uploading");
-            return client.post()
-                    .uri(STUDIES_ENDPOINT)
-                    .contentType(MULTIPART_RELATED_MEDIA_TYPE)
-                    .header("Authorization", qureConfiguration.getAuthorization())
-                    .body(bodyInserter)
-                    .exchange()
-                    .flatMap(this::mapUploadClientResponse)
-                    .timeout(qureConfiguration.getRequestTimeout())
-                    .onErrorMap(TimeoutException.class, QureConnectionException::new)
-                    .onErrorMap(IOException.class, QureConnectionException::new);
+    private List<List<QureDicomInstance>> splitRequests(Collection<QureDicomInstance> instances) throws IOException {
+        QureConfiguration.Upload upload = qureConfiguration.getUpload();
+        List<List<QureDicomInstance>> requests = new ArrayList<>();
+        List<QureDicomInstance> current = new ArrayList<>();
+        long currentBytes = 0;
+        for (QureDicomInstance instance : instances) {
+            long size = Files.size(instance.getPath());
+            if (!current.isEmpty() && (current.size() >= upload.getMaxPartsPerRequest()
+                    || currentBytes + size > upload.getMaxBytesPerRequest())) {
+                requests.add(current);
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(instance);
+            currentBytes += size;
+        }
+        if (!current.isEmpty()) {
+            requests.add(current);
+        }
+        return requests;
+    }
+
+    private Mono<QureSeriesResponseDto> uploadParts(List<QureDicomInstance> instances, boolean withFix) {
+        BodyInserters.MultipartInserter bodyInserter = withFix
+                ? new QureDicomRelatedMultipartBodyInserter()
+                : new DicomRelatedMultipartBodyInserter();
+        Map<QureDicomInstance, DigestingFileSystemResource> parts = new LinkedHashMap<>();
+        for (QureDicomInstance instance : instances) {
+            if (!Files.isReadable(instance.getPath())) {
+                return Mono.error(new RuntimeException("Could not read file when uploading to Qure: " + instance.getPath()));
+            }
+            Optional<String> duplicateOf;
+            try {
+                duplicateOf = qureUploadIndex.findDuplicate(instance.getPath());
+            } catch (IOException e) {
+                return Mono.error(new RuntimeException("Could not read file when uploading to Qure: " + instance.getPath(), e));
+            }
+            // the result is polled with the UID of the instance, a duplicate uploaded with another UID is sent again
+            if (duplicateOf.isPresent() && duplicateOf.get().equals(instance.getSopInstanceUid())) {
+                log.info("skipping upload of {}, already uploaded as {}", instance.getPath(), duplicateOf.get());
+                continue;
+            }
+            duplicateOf.ifPresent(uploadedUid -> log.info("uploading {} as {}, its content was uploaded as {}",
+                    instance.getPath(), instance.getSopInstanceUid(), uploadedUid));
+            // the file is streamed from disk by the multipart writer instead of being loaded in memory
+            DigestingFileSystemResource dicomFile = new DigestingFileSystemResource(instance.getPath(), qureMemoryBudget);
+            parts.put(instance, dicomFile);
+            bodyInserter.with(instance.getSopInstanceUid(), dicomFile);
+        }
+        if (parts.isEmpty()) {
+            return Mono.just(alreadyUploadedResponse());
+        }
+
+        log.info("uploading {} instance(s)", parts.size());
+        return exchangeUpload(bodyInserter)
+                .doOnNext(response -> parts.forEach((instance, dicomFile) -> {
+                    qureMetrics.countBytes(UPLOAD, QureMetrics.SENT, sizeOf(dicomFile));
+                    qureUploadIndex.record(dicomFile, instance.getSopInstanceUid());
+                }));
+    }
+
+    /**
+     * Uploads an instance received as a stream, such as a STOW-RS part: its content is forwarded as it arrives
+     * and can only be sent once, so it is neither retried nor deduplicated.
+     */
+    public Mono<QureSeriesResponseDto> upload(String sopInstanceUid, Flux<DataBuffer> content, boolean withFix) {
+        BodyInserters.MultipartInserter bodyInserter = withFix
+                ? new QureDicomRelatedMultipartBodyInserter()
+                : new DicomRelatedMultipartBodyInserter();
+        AtomicLong sentBytes = new AtomicLong();
+        bodyInserter.withPublisher(sopInstanceUid, qureMemoryBudget.govern(content)
+                .doOnNext(buffer -> sentBytes.addAndGet(buffer.readableByteCount())), DataBuffer.class);
+        log.info("uploading the received instance {}", sopInstanceUid);
+        return exchangeUpload(bodyInserter)
+                .doOnNext(response -> qureMetrics.countBytes(UPLOAD, QureMetrics.SENT, sentBytes.get()));
+    }
+
+    private Mono<QureSeriesResponseDto> exchangeUpload(BodyInserters.MultipartInserter bodyInserter) {
+        return qureCircuitBreaker.guard(qureRequestLimiter.limit(qureWebClient.post()
+                .uri(resolve(STUDIES_ENDPOINT))
+                .attribute(ENDPOINT_ATTRIBUTE, UPLOAD)
+                .contentType(MULTIPART_RELATED_MEDIA_TYPE)
+                .header("Authorization", qureConfiguration.getAuthorization())
+                .body(recorded(compressed(bodyInserter)))
+                .exchange()
+                .flatMap(this::mapUploadClientResponse)
+                .timeout(qureConfiguration.getRequestTimeout())
+                .onErrorMap(TimeoutException.class, QureConnectionException::new)
+                .onErrorMap(IOException.class, QureConnectionException::new)))
+                .doOnError(e -> qureMetrics.countError(UPLOAD, e));
+    }
+
+    private BodyInserter<?, ? super ClientHttpRequest> compressed(
+            BodyInserters.MultipartInserter bodyInserter) {
+        QureConfiguration.Upload upload = qureConfiguration.getUpload();
+        if (!upload.isCompressionEnabled()) {
+            return bodyInserter;
+        }
+        return (request, context) -> bodyInserter.insert(
+                new GzipClientHttpRequest(request, upload.getCompressionLevel(), qureMetrics::recordCompression), context);
+    }
+
+    private static BodyInserter<?, ? super ClientHttpRequest> recorded(
+            BodyInserter<?, ? super ClientHttpRequest> bodyInserter) {
+        return (request, context) -> QureFlightRecorder.recordEncoding(request, recordedRequest -> bodyInserter.insert(recordedRequest, context));
+    }
+
+    private static long sizeOf(DigestingFileSystemResource dicomFile) {
+        try {
+            return dicomFile.contentLength();
         } catch (IOException e) {
-            return Mono.error(new RuntimeException("Could not read bytes from file when uploading to Qure", e));
+            return 0;
         }
     }
 
+    private static QureSeriesResponseDto alreadyUploadedResponse() {
+        QureSeriesResponseDto response = new QureSeriesResponseDto();
+        response.setMessage("already uploaded");
+        response.setResult(1);
+        return response;
+    }
+
     public Mono<Boolean> ping() {
-        WebClient client = create(qureConfiguration.getBaseUrl());
         // Returns true on 4xx and 5xx because an error is expected
         // as there is no health endpoint on qure server we do a request to the upload endpoint
         // if the upload request connect the server will return an error
         // we only accept 4xx and 5xx as valid response because another code
         // will indicate the server is not behaving properly / our code won't handle the server
-        return client.post()
-                .uri(STUDIES_ENDPOINT)
+        return pingStatus().map(status -> status.is4xxClientError() || status.is5xxServerError());
+    }
+
+    /**
+     * Returns the status of the request sent by {@link #ping()}, to tell the errors of Qure from the ones of a
+     * gateway in front of it.
+     */
+    public Mono<HttpStatus> pingStatus() {
+        return qureWebClient.post()
+                .uri(resolve(STUDIES_ENDPOINT))
+                .attribute(ENDPOINT_ATTRIBUTE, PING)
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(BodyInserters.fromPublisher(Mono.just("ping"), String.class))
                 .exchange()
                 .timeout(qureConfiguration.getRequestTimeout())
-                .map(clientResponse -> clientResponse.statusCode().is4xxClientError()
-                        || clientResponse.statusCode().is5xxServerError())
+                .flatMap(clientResponse -> clientResponse.releaseBody().thenReturn(clientResponse.statusCode()))
                 .onErrorMap(TimeoutException.class, QureConnectionException::new)
-                .onErrorMap(IOException.class, QureConnectionException::new);
+                .onErrorMap(IOException.class, QureConnectionException::new)
+                .doOnError(e -> qureMetrics.countError(PING, e));
     }
 
     public Mono<QureResultResponseDto> getResults(String instanceUid) {
-        WebClient client = create(qureConfiguration.getBaseUrl());
-        log.info("getResults");
-        return client.get()
-                .uri(RESULTS_ENDPOINT + instanceUid)
-                .header("Authorization", qureConfiguration.getAuthorization())
-                .exchange()
-                .flatMap(this::mapGetResultClientResponse)
-                .timeout(qureConfiguration.getRequestTimeout())
-                .onErrorMap(TimeoutException.class, QureConnectionException::new)
-                .onErrorMap(IOException.class, QureConnectionException::new);
+        return getCachedResults(instanceUid).switchIfEmpty(Mono.defer(() -> {
+            log.info("getResults");
+            return qureCircuitBreaker.guard(qureRequestLimiter.limit(qureWebClient.get()
+                    .uri(resolve(RESULTS_ENDPOINT + instanceUid))
+                    .attribute(ENDPOINT_ATTRIBUTE, RESULTS)
+                    .header("Authorization", qureConfiguration.getAuthorization())
+                    .exchange()
+                    .flatMap(this::mapGetResultClientResponse)
+                    .timeout(qureConfiguration.getRequestTimeout())
+                    .onErrorMap(TimeoutException.class, QureConnectionException::new)
+                    .onErrorMap(IOException.class, QureConnectionException::new)))
+                    .doOnError(e -> qureMetrics.countError(RESULTS, e))
+                    .doOnNext(result -> {
+                        if (result.isSuccess()) {
+                            qureResultCache.putResult(instanceUid, result);
+                        }
+                    });
+        }));
+    }
+
+    /**
+     * Returns the result of an instance already processed, or an empty mono when it is not in the cache.
+     */
+    public Mono<QureResultResponseDto> getCachedResults(String instanceUid) {
+        return Mono.defer(() -> Mono.justOrEmpty(qureResultCache.getResult(instanceUid)))
+                .doOnNext(result -> log.info("getResults from cache"));
+    }
+
+    /**
+     * Downloads an object of the result of an instance, from the cache when it was already downloaded.
+     */
+    public Flux<DataBuffer> downloadObject(String instanceUid, String uriStr) {
+        return Flux.defer(() -> qureResultCache.getObject(instanceUid, uriStr)
+                .map(objectFile -> {
+                    log.info("downloadObject from cache");
+                    return qureResultCache.readObject(objectFile);
+                })
+                .orElseGet(() -> qureResultCache.cacheObject(instanceUid, uriStr, downloadObject(uriStr))));
+    }
+
+    public boolean isObjectCached(String instanceUid, String uriStr) {
+        return qureResultCache.getObject(instanceUid, uriStr).isPresent();
+    }
+
+    /**
+     * Downloads an object to a partial file which is resumed by the next call when the download fails.
+     */
+    public Mono<Path> downloadObject(String uriStr, Path partialPath) {
+        log.info("downloadObject to {}", partialPath);
+        return qureObjectDownloader.download(uriStr, partialPath);
+    }
+
+    /**
+     * Adds a downloaded object of the result of an instance to the cache.
+     */
+    public Mono<Void> cacheObject(String instanceUid, String uriStr, Path objectFile) {
+        return qureResultCache.putObject(instanceUid, uriStr, objectFile);
     }
 
     public Flux<DataBuffer> downloadObject(String uriStr) {
-        WebClient client = create("");
         URI uri = URI.create(uriStr);
         log.info("downloadObject");
-        return client.get()
+        return qureCircuitBreaker.guard(qureRequestLimiter.limit(qureWebClient.get()
                 .uri(uri)
+                .attribute(ENDPOINT_ATTRIBUTE, DOWNLOAD)
                 .exchange()
                 .flatMapMany(this::mapDownloadClientResponse)
                 .timeout(qureConfiguration.getRequestTimeout())
                 .onErrorMap(TimeoutException.class, QureConnectionException::new)
-                .onErrorMap(IOException.class, QureConnectionException::new);
+                .onErrorMap(IOException.class, QureConnectionException::new)))
+                .transform(qureMemoryBudget::govern)
+                .doOnNext(dataBuffer -> qureMetrics.countBytes(DOWNLOAD, QureMetrics.RECEIVED, dataBuffer.readableByteCount()))
+                .doOnError(e -> qureMetrics.countError(DOWNLOAD, e));
+    }
+
+    /**
+     * The base url is read on every call as it can be changed at runtime, the shared client has none.
+     */
+    private URI resolve(String endpoint) {
+        return UriComponentsBuilder.fromUriString(qureConfiguration.getBaseUrl())
+                .path(endpoint)
+                .build()
+                .toUri();
     }
 
     private Mono<QureResultResponseDto> mapGetResultClientResponse(ClientResponse clientResponse) {
@@ -128,7 +329,7 @@ public class QureClient {
         } else if (HttpStatus.UNAUTHORIZED.equals(httpStatus)) {
             return Mono.error(new QureConnectionException(httpStatus, ""));
         } else if(clientResponse.statusCode().is4xxClientError()) {
-            return clientResponse.bodyToMono(String.class).map(body -> {
+            return clientResponse.bodyToMono(String.class).defaultIfEmpty("").map(body -> {
                 throw new QureConnectionException(clientResponse.statusCode(), body);
             });
         }
@@ -141,6 +342,7 @@ public class QureClient {
             return clientResponse.bodyToMono(QureSeriesResponseDto.class);
         } else {
             return clientResponse.bodyToMono(String.class)
+                    .defaultIfEmpty("")
                     .flatMap(body -> Mono.error(new QureConnectionException(httpStatus, body)));
         }
     }
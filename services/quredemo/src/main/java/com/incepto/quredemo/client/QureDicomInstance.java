@@ -0,0 +1,14 @@
+package com.incepto.quredemo.client;
+
+import lombok.Value;
+
+import java.nio.file.Path;
+
+/**
+ * A DICOM file to upload, sent as a part named after its SOP Instance UID.
+ */
+@Value
+public class QureDicomInstance {
+    String sopInstanceUid;
+    Path path;
+}
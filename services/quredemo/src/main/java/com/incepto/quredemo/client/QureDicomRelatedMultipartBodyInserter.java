@@ -1,13 +1,20 @@
 package com.incepto.quredemo.client;
 
 import org.springframework.http.codec.HttpMessageWriter;
+import org.springframework.util.ConcurrentReferenceHashMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.reactive.function.BodyInserter;
 
+import java.util.List;
+import java.util.Map;
+
 public class QureDicomRelatedMultipartBodyInserter extends DicomRelatedMultipartBodyInserter {
 
+    private static final Map<List<HttpMessageWriter<?>>, HttpMessageWriter<MultiValueMap<String, ?>>> MESSAGE_WRITERS =
+            new ConcurrentReferenceHashMap<>();
+
     @Override
     protected HttpMessageWriter<MultiValueMap<String, ?>> buildMessageWriter(BodyInserter.Context context) {
-        return new QureDicomMultipartRelatedHttpMessageWriter(context.messageWriters());
+        return MESSAGE_WRITERS.computeIfAbsent(context.messageWriters(), QureDicomMultipartRelatedHttpMessageWriter::new);
     }
 }
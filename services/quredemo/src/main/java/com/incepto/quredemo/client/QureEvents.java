@@ -0,0 +1,139 @@
+package com.incepto.quredemo.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the phases of a study, each one tagged with the SOP Instance UID of the study so
+ * that a recording can be turned into a per-study timeline (filter on {@code instanceUid} in JDK Mission Control, or
+ * {@code jfr print --categories Qure}).
+ * <p>
+ * The events are disabled unless a recording is running: their cost is then the allocation of the event and a
+ * check of its enabled flag. Stack traces are not recorded.
+ */
+public final class QureEvents {
+
+    static final String CATEGORY = "Qure";
+
+    private QureEvents() {
+    }
+
+    @Name("com.incepto.qure.FileRead")
+    @Label("File Read")
+    @Description("Read of the DICOM header of an input file")
+    @Category({CATEGORY, "Study"})
+    @StackTrace(false)
+    public static class FileRead extends Event {
+        @Label("SOP Instance UID")
+        public String instanceUid;
+
+        @Label("Path")
+        public String path;
+    }
+
+    @Name("com.incepto.qure.MultipartEncoding")
+    @Label("Multipart Encoding")
+    @Description("Encoding of the multipart/related upload body, until its last part is written to the connection")
+    @Category({CATEGORY, "Upload"})
+    @StackTrace(false)
+    public static class MultipartEncoding extends Event {
+        @Label("SOP Instance UID")
+        public String instanceUid;
+
+        @Label("Encoded Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.incepto.qure.ConnectionAcquire")
+    @Label("Connection Acquire")
+    @Description("Wait for a pooled connection, or for a new connection to be connected and its TLS handshake done")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static class ConnectionAcquire extends Event {
+        @Label("SOP Instance UID")
+        public String instanceUid;
+
+        @Label("Endpoint")
+        public String endpoint;
+
+        @Label("New Connection")
+        public boolean newConnection;
+
+        @Label("TCP Connect")
+        @Timespan
+        public long tcpConnect;
+
+        @Label("TLS Handshake")
+        @Timespan
+        public long tlsHandshake;
+    }
+
+    @Name("com.incepto.qure.RequestSent")
+    @Label("Request Sent")
+    @Description("Write of a request, from its headers to the last byte of its body")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static class RequestSent extends Event {
+        @Label("SOP Instance UID")
+        public String instanceUid;
+
+        @Label("Endpoint")
+        public String endpoint;
+    }
+
+    @Name("com.incepto.qure.FirstResponseByte")
+    @Label("First Response Byte")
+    @Description("Wait for the response headers once the request is sent")
+    @Category({CATEGORY, "Request"})
+    @StackTrace(false)
+    public static class FirstResponseByte extends Event {
+        @Label("SOP Instance UID")
+        public String instanceUid;
+
+        @Label("Endpoint")
+        public String endpoint;
+
+        @Label("Status")
+        public int status;
+    }
+
+    @Name("com.incepto.qure.ResultPoll")
+    @Label("Result Poll")
+    @Description("Poll of the result of a study")
+    @Category({CATEGORY, "Result"})
+    @StackTrace(false)
+    public static class ResultPoll extends Event {
+        @Label("SOP Instance UID")
+        public String instanceUid;
+
+        @Label("Attempt")
+        public int attempt;
+
+        @Label("Outcome")
+        public String outcome;
+    }
+
+    @Name("com.incepto.qure.Download")
+    @Label("Download")
+    @Description("Download of a file of the result of a study to its output path")
+    @Category({CATEGORY, "Result"})
+    @StackTrace(false)
+    public static class Download extends Event {
+        @Label("SOP Instance UID")
+        public String instanceUid;
+
+        @Label("Artifact")
+        public String artifact;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+}
@@ -0,0 +1,187 @@
+package com.incepto.quredemo.client;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.http.client.reactive.ClientHttpRequestDecorator;
+import org.springframework.lang.Nullable;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.channel.BootstrapHandlers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.client.HttpClientInfos;
+import reactor.util.context.Context;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Emits the {@link QureEvents} of the requests sent to Qure.
+ * <p>
+ * The SOP Instance UID of the study is put in the reactor context of its processing with {@link #withInstanceUid},
+ * and read back by the events of the requests sent for it. The request events are kept in the context of the
+ * request by {@link #requestEvents()}, and the HTTP client hooks of {@link #instrument} end them: the connection
+ * is acquired when the request is about to be written, the request is sent once written, and the first response
+ * byte is received with the response headers. The TCP connect and TLS handshake times of a new connection are
+ * measured on its channel and reported with the first request it carries.
+ */
+public final class QureFlightRecorder {
+
+    private static final String INSTANCE_UID_KEY = QureFlightRecorder.class.getName() + ".instanceUid";
+    private static final String REQUEST_EVENTS_KEY = QureFlightRecorder.class.getName() + ".requestEvents";
+    private static final String CONNECTION_TIMES_HANDLER = "qure.connectionTimes";
+
+    private QureFlightRecorder() {
+    }
+
+    public static Context withInstanceUid(String instanceUid) {
+        return Context.of(INSTANCE_UID_KEY, instanceUid);
+    }
+
+    static String instanceUid(Context context) {
+        return context.getOrDefault(INSTANCE_UID_KEY, "");
+    }
+
+    /**
+     * Starts the events of each request when it is subscribed, to be added after the filters which delay requests
+     * so that the connection acquire does not include their wait.
+     */
+    public static ExchangeFilterFunction requestEvents() {
+        return (request, next) -> next.exchange(request)
+                .subscriberContext(context -> context.put(REQUEST_EVENTS_KEY, new RequestEvents(instanceUid(context),
+                        request.attribute(QureClient.ENDPOINT_ATTRIBUTE).map(Object::toString).orElse("none"))));
+    }
+
+    public static HttpClient instrument(HttpClient httpClient) {
+        return httpClient
+                .tcpConfiguration(tcpClient -> tcpClient.bootstrap(bootstrap -> BootstrapHandlers.updateConfiguration(
+                        bootstrap, CONNECTION_TIMES_HANDLER,
+                        (observer, channel) -> channel.pipeline().addFirst(CONNECTION_TIMES_HANDLER, new ConnectionTimes()))))
+                .doOnRequest((request, connection) -> withRequestEvents(request, events -> events.connected(connection.channel())))
+                .doAfterRequest((request, connection) -> withRequestEvents(request, RequestEvents::sent))
+                .doOnResponse((response, connection) -> withRequestEvents(response, events -> events.responded(response.status().code())))
+                .doOnRequestError((request, e) -> withRequestEvents(request, events -> events.responded(0)))
+                .doOnResponseError((response, e) -> withRequestEvents(response, events -> events.responded(0)));
+    }
+
+    /**
+     * Inserts a request body, recorded as a {@link QureEvents.MultipartEncoding} with the bytes written.
+     */
+    static Mono<Void> recordEncoding(ClientHttpRequest request, Function<ClientHttpRequest, Mono<Void>> insert) {
+        return Mono.subscriberContext().flatMap(context -> {
+            QureEvents.MultipartEncoding event = new QureEvents.MultipartEncoding();
+            if (!event.isEnabled()) {
+                return insert.apply(request);
+            }
+            event.instanceUid = instanceUid(context);
+            event.begin();
+            ClientHttpRequest countingRequest = new ClientHttpRequestDecorator(request) {
+                @Override
+                public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+                    return super.writeWith(Flux.from(body).doOnNext(buffer -> event.bytes += buffer.readableByteCount()));
+                }
+            };
+            return insert.apply(countingRequest).doFinally(signal -> event.commit());
+        });
+    }
+
+    private static void withRequestEvents(HttpClientInfos infos, Consumer<RequestEvents> action) {
+        infos.currentContext().<RequestEvents>getOrEmpty(REQUEST_EVENTS_KEY).ifPresent(action);
+    }
+
+    /**
+     * Events of a request, each one begun when the previous one ends. A request sent again by a retry is subscribed
+     * again and gets new events.
+     */
+    private static class RequestEvents {
+
+        private final QureEvents.ConnectionAcquire connectionAcquire = new QureEvents.ConnectionAcquire();
+        private final QureEvents.RequestSent requestSent = new QureEvents.RequestSent();
+        private final QureEvents.FirstResponseByte firstResponseByte = new QureEvents.FirstResponseByte();
+
+        RequestEvents(String instanceUid, String endpoint) {
+            connectionAcquire.instanceUid = instanceUid;
+            connectionAcquire.endpoint = endpoint;
+            requestSent.instanceUid = instanceUid;
+            requestSent.endpoint = endpoint;
+            firstResponseByte.instanceUid = instanceUid;
+            firstResponseByte.endpoint = endpoint;
+            connectionAcquire.begin();
+        }
+
+        synchronized void connected(Channel channel) {
+            ConnectionTimes connectionTimes = connectionTimes(channel);
+            if (connectionTimes != null && connectionTimes.report()) {
+                connectionAcquire.newConnection = true;
+                connectionAcquire.tcpConnect = connectionTimes.tcpConnectNanos;
+                connectionAcquire.tlsHandshake = connectionTimes.tlsHandshakeNanos;
+            }
+            connectionAcquire.commit();
+            requestSent.begin();
+        }
+
+        synchronized void sent() {
+            requestSent.commit();
+            firstResponseByte.begin();
+        }
+
+        synchronized void responded(int status) {
+            if (firstResponseByte.isEnabled() && firstResponseByte.status == 0) {
+                firstResponseByte.status = status;
+                firstResponseByte.commit();
+            }
+        }
+
+        /**
+         * The times are kept on the connection channel, the parent of the stream channel of an HTTP/2 request.
+         */
+        @Nullable
+        private static ConnectionTimes connectionTimes(Channel channel) {
+            for (Channel current = channel; current != null; current = current.parent()) {
+                if (current.pipeline().get(CONNECTION_TIMES_HANDLER) instanceof ConnectionTimes) {
+                    return (ConnectionTimes) current.pipeline().get(CONNECTION_TIMES_HANDLER);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * First handler of a connection channel, from its registration to its activation (TCP connected) and the end
+     * of its TLS handshake.
+     */
+    private static class ConnectionTimes extends ChannelInboundHandlerAdapter {
+
+        private final long startNanos = System.nanoTime();
+        private volatile long tcpConnectNanos;
+        private volatile long tlsHandshakeNanos;
+        private boolean reported;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            long connectedNanos = System.nanoTime();
+            tcpConnectNanos = connectedNanos - startNanos;
+            SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+            if (sslHandler != null) {
+                sslHandler.handshakeFuture().addListener(future -> tlsHandshakeNanos = System.nanoTime() - connectedNanos);
+            }
+            ctx.fireChannelActive();
+        }
+
+        /**
+         * True for the first request of the connection only.
+         */
+        synchronized boolean report() {
+            if (reported) {
+                return false;
+            }
+            reported = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * Pings Qure in the background every {@code interval} and drives the circuit breaker with the outcome,
+ * so that the callers know whether Qure is available without waiting for a request timeout. While the breaker is
+ * open, Qure is probed every {@code recoveryInterval} so that the held requests go on soon after it is back.
+ * <p>
+ * The ping is answered with an error by a healthy Qure, but a 502 or 504 is the answer of a gateway or load balancer
+ * which could not reach it: the probe then fails. A 503 is the answer of an overloaded Qure, which the request limiter
+ * handles, not of a Qure down.
+ * <p>
+ * Nothing injects the monitor, it is created eagerly even with lazy initialization (fast-start profile): otherwise it
+ * would never start and an open breaker would never close again.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+@RequiredArgsConstructor
+public class QureHealthMonitor {
+
+    private static final Set<HttpStatus> UNAVAILABLE_STATUSES = Set.of(HttpStatus.BAD_GATEWAY, HttpStatus.GATEWAY_TIMEOUT);
+
+    private final QureClient qureClient;
+    private final QureCircuitBreaker qureCircuitBreaker;
+    private final QureConfiguration qureConfiguration;
+
+    @Nullable
+    private Disposable probes;
+    private volatile boolean available = true;
+    @Nullable
+    private volatile Instant lastProbe;
+
+    @PostConstruct
+    public void start() {
+        QureConfiguration.Health health = qureConfiguration.getHealth();
+        if (!health.isEnabled()) {
+            return;
+        }
+        probes = Flux.interval(Duration.ZERO, health.getRecoveryInterval())
+                .onBackpressureDrop()
+                .filter(tick -> isProbeDue())
+                .concatMap(tick -> probe(), 1)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (probes != null) {
+            probes.dispose();
+        }
+    }
+
+    /**
+     * Outcome of the last probe, true until the first one completes.
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    @Nullable
+    public Instant getLastProbe() {
+        return lastProbe;
+    }
+
+    /**
+     * Probes every interval, and every recovery interval while the breaker is open.
+     */
+    private boolean isProbeDue() {
+        Instant last = lastProbe;
+        return last == null || qureCircuitBreaker.isOpen()
+                || !last.plus(qureConfiguration.getHealth().getInterval()).isAfter(Instant.now());
+    }
+
+    Mono<Boolean> probe() {
+        return qureClient.pingStatus()
+                .map(status -> (status.is4xxClientError() || status.is5xxServerError())
+                        && !UNAVAILABLE_STATUSES.contains(status))
+                .timeout(qureConfiguration.getHealth().getTimeout())
+                .onErrorResume(e -> {
+                    log.debug("health probe failed", e);
+                    return Mono.just(false);
+                })
+                .doOnNext(healthy -> {
+                    available = healthy;
+                    lastProbe = Instant.now();
+                    if (healthy) {
+                        qureCircuitBreaker.close();
+                    } else {
+                        qureCircuitBreaker.open("health probe failed");
+                    }
+                });
+    }
+}
@@ -0,0 +1,269 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caps the bytes of the buffers in flight across every upload and download sent to Qure.
+ * <p>
+ * The buffers are pooled direct buffers of the Netty {@link PooledByteBufAllocator}. A chunk of a file to upload is
+ * only allocated once the budget has room for it, and a buffer received by a download is only handed over once its
+ * bytes are reserved: the next buffers are not requested from the connection in the meantime. The bytes of a buffer
+ * are given back when its last reference is released, wherever it is released, by the HTTP client once written to
+ * the connection or by the downloader once written to a file. Waiters are served in order, and a buffer larger than
+ * the whole budget waits until nothing else is in flight.
+ */
+@Component
+public class QureMemoryBudget {
+
+    private final QureConfiguration qureConfiguration;
+
+    private final PooledByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(allocator);
+
+    private final Object lock = new Object();
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private long bytesInFlight;
+
+    public QureMemoryBudget(QureConfiguration qureConfiguration, QureMetrics qureMetrics) {
+        this.qureConfiguration = qureConfiguration;
+        qureMetrics.gaugeMemory(this);
+    }
+
+    public boolean isEnabled() {
+        return qureConfiguration.getMemory().isEnabled();
+    }
+
+    public long getBytesInFlight() {
+        synchronized (lock) {
+            return bytesInFlight;
+        }
+    }
+
+    public int getWaiters() {
+        synchronized (lock) {
+            return waiters.size();
+        }
+    }
+
+    /**
+     * Reads the file as chunks of pooled direct buffers, each one allocated once the budget has room for it.
+     */
+    public Flux<DataBuffer> read(Path path, int chunkSize) {
+        return Flux.using(
+                () -> AsynchronousFileChannel.open(path, StandardOpenOption.READ),
+                channel -> Mono.fromCallable(channel::size).flatMapMany(size -> Flux.range(0, chunkCount(size, chunkSize))
+                        .concatMap(index -> {
+                            long position = (long) index * chunkSize;
+                            return readChunk(channel, position, (int) Math.min(chunkSize, size - position));
+                        }, 1)),
+                QureMemoryBudget::closeQuietly)
+                .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * Hands the buffers over once their bytes are reserved, the buffers of other factories are copied to pooled
+     * direct buffers.
+     */
+    public Flux<DataBuffer> govern(Flux<DataBuffer> buffers) {
+        if (!isEnabled()) {
+            return buffers;
+        }
+        return buffers
+                .concatMap(buffer -> reserve(buffer.readableByteCount())
+                        .map(reservation -> wrap(buffer, reservation))
+                        .doOnCancel(() -> DataBufferUtils.release(buffer)), 1)
+                .doOnDiscard(PooledDataBuffer.class, DataBufferUtils::release);
+    }
+
+    private Mono<DataBuffer> readChunk(AsynchronousFileChannel channel, long position, int length) {
+        return reserve(length).flatMap(reservation -> {
+            ByteBuf byteBuf;
+            try {
+                byteBuf = allocator.directBuffer(length, length).writerIndex(length);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                giveBack(reservation);
+                return Mono.error(e);
+            }
+            // the budgeted buffer owns the chunk from now on, the file is read into its memory
+            ByteBuf chunk = new BudgetedByteBuf(allocator, byteBuf, reservation);
+            ByteBuffer target = byteBuf.nioBuffer(0, length);
+            return readFully(channel, target, position)
+                    .then(Mono.fromCallable(() -> (DataBuffer) bufferFactory.wrap(chunk)))
+                    .doOnError(e -> chunk.release())
+                    .doOnCancel(chunk::release);
+        });
+    }
+
+    private DataBuffer wrap(DataBuffer buffer, Reservation reservation) {
+        ByteBuf byteBuf;
+        if (buffer instanceof NettyDataBuffer) {
+            byteBuf = ((NettyDataBuffer) buffer).getNativeBuffer();
+        } else {
+            int length = buffer.readableByteCount();
+            byteBuf = allocator.directBuffer(length, length);
+            byteBuf.writeBytes(buffer.asByteBuffer());
+            DataBufferUtils.release(buffer);
+        }
+        return bufferFactory.wrap(new BudgetedByteBuf(allocator, byteBuf, reservation));
+    }
+
+    private static Mono<Void> readFully(AsynchronousFileChannel channel, ByteBuffer target, long position) {
+        return Mono.<Integer>create(sink -> channel.read(target, position + target.position(), sink,
+                new CompletionHandler<Integer, MonoSink<Integer>>() {
+                    @Override
+                    public void completed(Integer read, MonoSink<Integer> attachment) {
+                        attachment.success(read);
+                    }
+
+                    @Override
+                    public void failed(Throwable e, MonoSink<Integer> attachment) {
+                        attachment.error(e);
+                    }
+                }))
+                .flatMap(read -> {
+                    if (read < 0) {
+                        return Mono.error(new EOFException("the file was truncated while read"));
+                    }
+                    return target.hasRemaining() ? readFully(channel, target, position) : Mono.empty();
+                });
+    }
+
+    /**
+     * Reserves the bytes once the budget has room for them, a reservation larger than the budget is cut to the
+     * budget. The reservation is given back when the wait is cancelled after it was granted.
+     */
+    private Mono<Reservation> reserve(int bytes) {
+        long reserved = Math.min(bytes, qureConfiguration.getMemory().getMaxBytesInFlight());
+        return Mono.<Reservation>create(sink -> {
+            Waiter waiter = new Waiter(sink, reserved);
+            sink.onCancel(() -> {
+                synchronized (lock) {
+                    waiters.remove(waiter);
+                }
+                // the waiters behind it may fit
+                grantWaiters();
+            });
+            boolean granted;
+            synchronized (lock) {
+                granted = waiters.isEmpty() && fits(reserved);
+                if (granted) {
+                    bytesInFlight += reserved;
+                } else {
+                    waiters.addLast(waiter);
+                }
+            }
+            if (granted) {
+                sink.success(new Reservation(reserved));
+            }
+        })
+                .doOnDiscard(Reservation.class, this::giveBack);
+    }
+
+    private void giveBack(Reservation reservation) {
+        if (reservation.released.compareAndSet(false, true)) {
+            synchronized (lock) {
+                bytesInFlight -= reservation.bytes;
+            }
+            grantWaiters();
+        }
+    }
+
+    /**
+     * Completes the waiters outside of the lock, in the order they came in.
+     */
+    private void grantWaiters() {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (lock) {
+            while (!waiters.isEmpty() && fits(waiters.getFirst().bytes)) {
+                Waiter waiter = waiters.removeFirst();
+                bytesInFlight += waiter.bytes;
+                granted.add(waiter);
+            }
+        }
+        granted.forEach(waiter -> waiter.sink.success(new Reservation(waiter.bytes)));
+    }
+
+    private boolean fits(long bytes) {
+        return bytesInFlight + bytes <= qureConfiguration.getMemory().getMaxBytesInFlight();
+    }
+
+    private static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (Exception e) {
+            // nothing was written to the channel
+        }
+    }
+
+    private static class Waiter {
+        private final MonoSink<Reservation> sink;
+        private final long bytes;
+
+        Waiter(MonoSink<Reservation> sink, long bytes) {
+            this.sink = sink;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Reservation {
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A buffer holding a reservation, given back once the buffer is deallocated: Spring and Netty both release a
+     * {@link NettyDataBuffer} through its {@link ByteBuf}, so every release path is tracked. Slices and duplicates
+     * share its reference count.
+     */
+    private class BudgetedByteBuf extends CompositeByteBuf {
+
+        private final Reservation reservation;
+
+        BudgetedByteBuf(ByteBufAllocator allocator, ByteBuf byteBuf, Reservation reservation) {
+            super(allocator, true, 1, byteBuf);
+            this.reservation = reservation;
+        }
+
+        @Override
+        protected void deallocate() {
+            try {
+                super.deallocate();
+            } finally {
+                giveBack(reservation);
+            }
+        }
+    }
+}
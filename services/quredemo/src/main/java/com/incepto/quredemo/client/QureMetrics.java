@@ -0,0 +1,142 @@
+package com.incepto.quredemo.client;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import static com.incepto.quredemo.client.QureClient.UPLOAD;
+
+/**
+ * Counters and timers of the Qure operations, the request latencies are recorded as
+ * {@code http.client.requests} by the actuator WebClient instrumentation.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class QureMetrics {
+
+    public static final String SENT = "sent";
+    public static final String RECEIVED = "received";
+    public static final String COMPRESSED = "compressed";
+
+    private final MeterRegistry meterRegistry;
+
+    public void countBytes(String endpoint, String direction, long bytes) {
+        meterRegistry.counter("qure.client.bytes", "endpoint", endpoint, "direction", direction).increment(bytes);
+    }
+
+    public void countError(String endpoint, Throwable error) {
+        meterRegistry.counter("qure.client.errors", "endpoint", endpoint, "type", errorType(error)).increment();
+    }
+
+    public void countPoll(String outcome) {
+        meterRegistry.counter("qure.result.polls", "outcome", outcome).increment();
+    }
+
+    public void recordResultWait(Duration duration) {
+        meterRegistry.timer("qure.result.wait").record(duration);
+    }
+
+    public void recordDownload(String artifact, Duration duration) {
+        meterRegistry.timer("qure.result.download", "artifact", artifact).record(duration);
+    }
+
+    /**
+     * Records the ratio of a compressed upload and the time spent compressing it, to compare with its
+     * {@code http.client.requests} time.
+     */
+    public void recordCompression(long rawBytes, long compressedBytes, Duration deflateTime) {
+        meterRegistry.timer("qure.upload.compression.time").record(deflateTime);
+        if (compressedBytes > 0) {
+            meterRegistry.summary("qure.upload.compression.ratio").record((double) rawBytes / compressedBytes);
+        }
+        countBytes(UPLOAD, COMPRESSED, compressedBytes);
+        log.debug("compressed {} bytes to {} bytes in {} ms", rawBytes, compressedBytes, deflateTime.toMillis());
+    }
+
+    public void recordStudy(Duration duration, String outcome) {
+        meterRegistry.timer("qure.study", "outcome", outcome).record(duration);
+    }
+
+    /**
+     * Publishes the studies waiting in the queue of a pipeline stage, the ones it is working on and its utilization,
+     * the share of its concurrency in use. The gauges only hold weak references to the counters.
+     */
+    public void gaugeStage(String stage, AtomicInteger queued, AtomicInteger busy, int concurrency) {
+        Tags tags = Tags.of("stage", stage);
+        meterRegistry.gauge("qure.pipeline.queue", tags, queued);
+        meterRegistry.gauge("qure.pipeline.busy", tags, busy);
+        meterRegistry.gauge("qure.pipeline.utilization", tags, busy, value -> value.get() / (double) concurrency);
+    }
+
+    public void recordStage(String stage, Duration duration) {
+        meterRegistry.timer("qure.pipeline.stage", "stage", stage).record(duration);
+    }
+
+    /**
+     * Publishes the bytes of the upload and download buffers in flight, and the producers waiting for budget.
+     */
+    public void gaugeMemory(QureMemoryBudget memoryBudget) {
+        meterRegistry.gauge("qure.memory.inflight", memoryBudget, QureMemoryBudget::getBytesInFlight);
+        meterRegistry.gauge("qure.memory.waiters", memoryBudget, QureMemoryBudget::getWaiters);
+    }
+
+    /**
+     * Writes the current value of every meter, used to get the metrics of a CLI run which exposes no endpoint.
+     */
+    public void dump(Path path) {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Meter meter : meterRegistry.getMeters().stream()
+                    .sorted(Comparator.comparing(meter -> meter.getId().getName()))
+                    .collect(Collectors.toList())) {
+                String tags = meter.getId().getTags().stream()
+                        .map(tag -> tag.getKey() + "=" + tag.getValue())
+                        .collect(Collectors.joining(",", "{", "}"));
+                for (Measurement measurement : meter.measure()) {
+                    writer.write(meter.getId().getName() + tags + " " + measurement.getStatistic().getTagValueRepresentation()
+                            + " " + measurement.getValue() + System.lineSeparator());
+                }
+                if (meter instanceof Timer) {
+                    Timer timer = (Timer) meter;
+                    for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+                        writer.write(meter.getId().getName() + tags + " p" + percentile.percentile()
+                                + " " + percentile.value(timer.baseTimeUnit()) + System.lineSeparator());
+                    }
+                }
+            }
+            log.info("metrics written to {}", path);
+        } catch (IOException e) {
+            log.warn("could not write the metrics to {}", path, e);
+        }
+    }
+
+    private static String errorType(Throwable error) {
+        if (error instanceof QureConnectionException) {
+            Throwable cause = error.getCause();
+            if (cause instanceof TimeoutException) {
+                return "timeout";
+            } else if (cause instanceof IOException) {
+                return "io";
+            }
+            return String.valueOf(((QureConnectionException) error).getStatus().value());
+        }
+        return error.getClass().getSimpleName();
+    }
+}
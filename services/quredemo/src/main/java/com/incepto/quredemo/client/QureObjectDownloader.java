@@ -0,0 +1,382 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import static com.incepto.quredemo.client.QureClient.DOWNLOAD;
+import static com.incepto.quredemo.client.QureClient.ENDPOINT_ATTRIBUTE;
+
+/**
+ * Downloads result objects to a partial file which is kept when the download fails.
+ * <p>
+ * A failed download is resumed from the bytes already on disk with a {@code Range} request, the request timeout
+ * only bounds the wait for the response and between two chunks so a slow but steady link is not cut.
+ * Objects larger than the parallel threshold are fetched as parallel ranges when the server advertises
+ * {@code Accept-Ranges: bytes}. Servers ignoring ranges send the whole object, which is then written again
+ * from its start.
+ * <p>
+ * The range requests carry an {@code If-Range} with the strong {@code ETag} or the {@code Last-Modified} of the
+ * object, kept next to the partial file, so that the server sends the whole object again instead of the end of
+ * another version of it. A partial file without validator is downloaded again from its start.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class QureObjectDownloader {
+
+    private static final String BYTES_UNIT = "bytes";
+    private static final String RANGES_SUFFIX = ".ranges";
+    private static final String VALIDATOR_SUFFIX = ".validator";
+    private static final String WEAK_ETAG_PREFIX = "W/";
+
+    private final QureConfiguration qureConfiguration;
+
+    private final WebClient qureWebClient;
+
+    private final QureMetrics qureMetrics;
+
+    private final QureRequestLimiter qureRequestLimiter;
+
+    private final QureCircuitBreaker qureCircuitBreaker;
+
+    private final QureMemoryBudget qureMemoryBudget;
+
+    /**
+     * Downloads the object to the partial path, resuming the bytes it already holds, and returns it once complete.
+     */
+    public Mono<Path> download(String uri, Path partialPath) {
+        QureConfiguration.Download download = qureConfiguration.getDownload();
+        Mono<Path> result;
+        if (download.getParallelRanges() > 1 && sizeOf(partialPath) == 0) {
+            result = probe(uri)
+                    .filter(probed -> probed.length >= download.getParallelThreshold())
+                    .flatMap(probed -> downloadRanges(uri, partialPath, probed.length, probed.validator)
+                            .onErrorResume(RangesNotSupportedException.class, e -> {
+                                log.info("{} does not support ranges or changed, downloading it as a whole", uri);
+                                return downloadSequentially(uri, partialPath);
+                            }))
+                    .switchIfEmpty(Mono.defer(() -> downloadSequentially(uri, partialPath)));
+        } else {
+            result = downloadSequentially(uri, partialPath);
+        }
+        return result.doOnError(e -> qureMetrics.countError(DOWNLOAD, e));
+    }
+
+    private Mono<Path> downloadSequentially(String uri, Path partialPath) {
+        return Mono.defer(() -> resume(uri, partialPath))
+                .retryWhen(retry(uri))
+                .then(Mono.fromCallable(() -> Files.deleteIfExists(validatorPath(partialPath))))
+                .thenReturn(partialPath);
+    }
+
+    /**
+     * Requests the bytes following the ones already on disk and appends them, when the object did not change since.
+     */
+    private Mono<Void> resume(String uri, Path partialPath) {
+        long size = sizeOf(partialPath);
+        String validator = size > 0 ? readValidator(partialPath) : null;
+        long position = validator != null ? size : 0;
+        if (position > 0) {
+            log.info("resuming the download of {} from byte {}", uri, position);
+        } else if (size > 0) {
+            log.info("the partial download of {} has no validator, downloading it again from the start", uri);
+        }
+        return exchange(uri, position, null, validator).flatMap(response -> {
+            HttpStatus status = response.statusCode();
+            if (status == HttpStatus.PARTIAL_CONTENT && position > 0 && rangeStart(response) == position) {
+                return write(response.bodyToFlux(DataBuffer.class), partialPath, position, written -> { });
+            } else if (status == HttpStatus.OK) {
+                if (position > 0) {
+                    log.info("{} was sent as a whole, downloading it again from the start", uri);
+                }
+                // the partial file is emptied before the validator of the new content is kept
+                return Mono.fromCallable(() -> Files.write(partialPath, new byte[0]))
+                        .then(Mono.fromCallable(() -> writeValidator(partialPath, validatorOf(response))))
+                        .onErrorResume(e -> response.releaseBody().then(Mono.error(e)))
+                        .then(write(response.bodyToFlux(DataBuffer.class), partialPath, 0, written -> { }));
+            } else if (status == HttpStatus.PARTIAL_CONTENT && position > 0) {
+                log.info("{} was sent from another byte than {}, downloading it again from the start", uri, position);
+                return response.releaseBody()
+                        .then(Mono.fromRunnable(() -> deletePartialFile(partialPath)))
+                        .then(Mono.defer(() -> resume(uri, partialPath)));
+            } else if (status == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE && position > 0) {
+                // the partial file is already complete, or does not match the object anymore
+                if (rangeLength(response) == position) {
+                    return response.releaseBody();
+                }
+                return response.releaseBody()
+                        .then(Mono.fromRunnable(() -> deletePartialFile(partialPath)))
+                        .then(Mono.defer(() -> resume(uri, partialPath)));
+            }
+            return response.releaseBody().then(Mono.error(new QureConnectionException(status, "")));
+        });
+    }
+
+    /**
+     * Returns the length and the validator of the object when the server accepts byte ranges and sends a validator,
+     * empty otherwise.
+     */
+    private Mono<ProbedObject> probe(String uri) {
+        return qureWebClient.head()
+                .uri(URI.create(uri))
+                .attribute(ENDPOINT_ATTRIBUTE, DOWNLOAD)
+                .exchange()
+                .timeout(qureConfiguration.getRequestTimeout())
+                .flatMap(response -> {
+                    List<String> acceptRanges = response.headers().header(HttpHeaders.ACCEPT_RANGES);
+                    long length = response.headers().contentLength().orElse(-1);
+                    String validator = validatorOf(response);
+                    Mono<ProbedObject> probed = response.statusCode().is2xxSuccessful() && acceptRanges.contains(BYTES_UNIT)
+                            && length > 0 && validator != null ? Mono.just(new ProbedObject(length, validator)) : Mono.empty();
+                    return response.releaseBody().then(probed);
+                })
+                .onErrorResume(e -> {
+                    log.debug("could not probe the length of {}", uri, e);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Downloads the ranges to a separate file, a partial file with holes is never resumed as a sequential one.
+     */
+    private Mono<Path> downloadRanges(String uri, Path partialPath, long length, String validator) {
+        Path rangesPath = partialPath.resolveSibling(partialPath.getFileName() + RANGES_SUFFIX);
+        int rangeCount = qureConfiguration.getDownload().getParallelRanges();
+        long rangeSize = (length + rangeCount - 1) / rangeCount;
+        log.info("downloading {} as {} ranges of {} bytes", uri, rangeCount, rangeSize);
+        return Mono.using(
+                () -> AsynchronousFileChannel.open(rangesPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING),
+                channel -> Flux.range(0, rangeCount)
+                        .filter(index -> index * rangeSize < length)
+                        .flatMap(index -> downloadRange(uri, channel, index * rangeSize,
+                                Math.min(length, (index + 1) * rangeSize) - 1, validator), rangeCount)
+                        .then(),
+                this::close)
+                .then(Mono.fromCallable(() -> Files.move(rangesPath, partialPath,
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)))
+                .doOnError(e -> deleteQuietly(rangesPath));
+    }
+
+    /**
+     * Downloads the bytes {@code first} to {@code last} included, a retry resumes after the bytes written. The whole
+     * object sent by a server which ignores ranges, or because it changed, fails the range.
+     */
+    private Mono<Void> downloadRange(String uri, AsynchronousFileChannel channel, long first, long last, String validator) {
+        AtomicLong written = new AtomicLong();
+        return Mono.defer(() -> {
+            long position = first + written.get();
+            if (position > last) {
+                return Mono.empty();
+            }
+            return exchange(uri, position, last, validator).flatMap(response -> {
+                if (response.statusCode() != HttpStatus.PARTIAL_CONTENT || rangeStart(response) != position) {
+                    return response.releaseBody().then(Mono.error(new RangesNotSupportedException()));
+                }
+                return write(response.bodyToFlux(DataBuffer.class), channel, position, written::addAndGet);
+            });
+        }).retryWhen(retry(uri));
+    }
+
+    private Mono<ClientResponse> exchange(String uri, long first, @Nullable Long last, @Nullable String validator) {
+        return qureCircuitBreaker.guard(qureRequestLimiter.limit(qureWebClient.get()
+                .uri(URI.create(uri))
+                .attribute(ENDPOINT_ATTRIBUTE, DOWNLOAD)
+                .headers(headers -> {
+                    if (first > 0 || last != null) {
+                        headers.setRange(List.of(last != null
+                                ? HttpRange.createByteRange(first, last)
+                                : HttpRange.createByteRange(first)));
+                        if (validator != null) {
+                            headers.set(HttpHeaders.IF_RANGE, validator);
+                        }
+                    }
+                })
+                .exchange()
+                .timeout(qureConfiguration.getRequestTimeout())
+                .onErrorMap(TimeoutException.class, QureConnectionException::new)
+                .onErrorMap(IOException.class, QureConnectionException::new)));
+    }
+
+    private Mono<Void> write(Flux<DataBuffer> body, Path path, long position, LongConsumer onWritten) {
+        return Mono.using(
+                () -> AsynchronousFileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE),
+                channel -> write(body, channel, position, onWritten),
+                this::close);
+    }
+
+    /**
+     * Writes the buffers at the position as they arrive, the timeout is the longest wait for the next buffer.
+     */
+    private Mono<Void> write(Flux<DataBuffer> body, AsynchronousFileChannel channel, long position, LongConsumer onWritten) {
+        Flux<DataBuffer> content = body
+                .timeout(qureConfiguration.getRequestTimeout())
+                .onErrorMap(TimeoutException.class, QureConnectionException::new)
+                .onErrorMap(IOException.class, QureConnectionException::new)
+                .transform(qureMemoryBudget::govern);
+        return DataBufferUtils.write(content, channel, position)
+                .doOnNext(dataBuffer -> {
+                    int writtenBytes = dataBuffer.readableByteCount();
+                    onWritten.accept(writtenBytes);
+                    qureMetrics.countBytes(DOWNLOAD, QureMetrics.RECEIVED, writtenBytes);
+                    DataBufferUtils.release(dataBuffer);
+                })
+                .then();
+    }
+
+    private Retry retry(String uri) {
+        QureConfiguration.Download download = qureConfiguration.getDownload();
+        return Retry.backoff(download.getMaxAttempts() - 1L, download.getRetryBackoff())
+                .filter(QureObjectDownloader::isRetryable)
+                .doBeforeRetry(signal -> log.warn("download of {} failed, retrying: {}", uri, signal.failure().getMessage()))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    private static boolean isRetryable(Throwable error) {
+        return error instanceof QureConnectionException
+                && ((QureConnectionException) error).getStatus().is5xxServerError();
+    }
+
+    /**
+     * The strong {@code ETag} of the response, or its {@code Last-Modified} date, null when it has neither.
+     */
+    @Nullable
+    private static String validatorOf(ClientResponse response) {
+        HttpHeaders headers = response.headers().asHttpHeaders();
+        String eTag = headers.getETag();
+        if (eTag != null && !eTag.startsWith(WEAK_ETAG_PREFIX)) {
+            return eTag;
+        }
+        return headers.getFirst(HttpHeaders.LAST_MODIFIED);
+    }
+
+    private static Path validatorPath(Path partialPath) {
+        return partialPath.resolveSibling(partialPath.getFileName() + VALIDATOR_SUFFIX);
+    }
+
+    @Nullable
+    private String readValidator(Path partialPath) {
+        Path validatorPath = validatorPath(partialPath);
+        try {
+            return Files.exists(validatorPath) ? Files.readString(validatorPath, StandardCharsets.US_ASCII) : null;
+        } catch (IOException e) {
+            log.warn("could not read {}", validatorPath, e);
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the validator of the object next to its partial file, or deletes the previous one when it has none.
+     */
+    private static Path writeValidator(Path partialPath, @Nullable String validator) throws IOException {
+        Path validatorPath = validatorPath(partialPath);
+        if (validator == null) {
+            Files.deleteIfExists(validatorPath);
+            return validatorPath;
+        }
+        return Files.writeString(validatorPath, validator, StandardCharsets.US_ASCII);
+    }
+
+    private void deletePartialFile(Path partialPath) {
+        deleteQuietly(partialPath);
+        deleteQuietly(validatorPath(partialPath));
+    }
+
+    /**
+     * The first byte of a {@code Content-Range: bytes first-last/length} header, -1 when absent.
+     */
+    private static long rangeStart(ClientResponse response) {
+        String contentRange = response.headers().asHttpHeaders().getFirst(HttpHeaders.CONTENT_RANGE);
+        if (contentRange == null || !contentRange.startsWith(BYTES_UNIT + " ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        try {
+            return dash > 0 ? Long.parseLong(contentRange.substring(BYTES_UNIT.length() + 1, dash).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The length of a {@code Content-Range: bytes first-last/length} or {@code bytes * /length} header, -1 when absent.
+     */
+    private static long rangeLength(ClientResponse response) {
+        String contentRange = response.headers().asHttpHeaders().getFirst(HttpHeaders.CONTENT_RANGE);
+        int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        try {
+            return slash > 0 ? Long.parseLong(contentRange.substring(slash + 1).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.exists(path) ? Files.size(path) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("could not close the download file", e);
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("could not delete {}", path, e);
+        }
+    }
+
+    private static class ProbedObject {
+        private final long length;
+        private final String validator;
+
+        ProbedObject(long length, String validator) {
+            this.length = length;
+            this.validator = validator;
+        }
+    }
+
+    private static class RangesNotSupportedException extends RuntimeException {
+
+        private static final long serialVersionUID = -3346716437981306128L;
+
+        RangesNotSupportedException() {
+            super("byte ranges not supported", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the requests sent to Qure to an adaptive number in flight, and optionally to a fixed rate per API key.
+ * <p>
+ * The limit follows AIMD: it grows by one every {@code limit} successful responses while the window is in use,
+ * and is multiplied by {@code backoffRatio} on an overload signal: a 429, a 503 (except the pending results),
+ * a timeout, or a response slower than {@code latencyTolerance} times the average latency of its endpoint. The
+ * uploads are left out of the latency signal: their latency includes sending their body, a large file is not slow.
+ * Responses to requests sent before the last decrease do not decrease it again.
+ * <p>
+ * {@link #limit(Mono)} waits for a permit before subscribing the request, so the request timeout does not include
+ * the time spent waiting. As a filter of the Qure {@code WebClient}, it observes the status and latency of the
+ * responses.
+ */
+@Slf4j
+@Component
+public class QureRequestLimiter implements ExchangeFilterFunction {
+
+    private static final double LATENCY_SMOOTHING = 0.05;
+
+    private final QureConfiguration qureConfiguration;
+
+    private final Object lock = new Object();
+    private final Deque<MonoSink<Permit>> waiters = new ArrayDeque<>();
+    private final Map<String, Double> averageLatencies = new HashMap<>();
+    private final Map<String, TokenBucket> tokenBuckets = new ConcurrentHashMap<>();
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    public QureRequestLimiter(QureConfiguration qureConfiguration, MeterRegistry meterRegistry) {
+        this.qureConfiguration = qureConfiguration;
+        this.limit = qureConfiguration.getLimiter().getInitialLimit();
+        meterRegistry.gauge("qure.client.limit", this, QureRequestLimiter::getLimit);
+        meterRegistry.gauge("qure.client.inflight", this, QureRequestLimiter::getInFlight);
+    }
+
+    public double getLimit() {
+        synchronized (lock) {
+            return limit;
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * Subscribes the request once the rate quota and the concurrency limit allow it, the permit is released when
+     * the request completes, fails or is cancelled.
+     */
+    public <T> Mono<T> limit(Mono<T> request) {
+        if (!qureConfiguration.getLimiter().isEnabled()) {
+            return request;
+        }
+        return throttle().then(Mono.usingWhen(acquire(),
+                permit -> request,
+                this::release,
+                (permit, error) -> {
+                    onError(permit, error);
+                    return release(permit);
+                },
+                this::release));
+    }
+
+    public <T> Flux<T> limit(Flux<T> request) {
+        if (!qureConfiguration.getLimiter().isEnabled()) {
+            return request;
+        }
+        return throttle().thenMany(Flux.usingWhen(acquire(),
+                permit -> request,
+                this::release,
+                (permit, error) -> {
+                    onError(permit, error);
+                    return release(permit);
+                },
+                this::release));
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        if (!qureConfiguration.getLimiter().isEnabled()) {
+            return next.exchange(request);
+        }
+        String endpoint = request.attribute(QureClient.ENDPOINT_ATTRIBUTE).map(Object::toString).orElse("none");
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            return next.exchange(request)
+                    .doOnNext(response -> onResponse(endpoint, response.statusCode(), startNanos));
+        });
+    }
+
+    private Mono<Permit> acquire() {
+        return Mono.<Permit>create(sink -> {
+            sink.onCancel(() -> {
+                synchronized (lock) {
+                    waiters.remove(sink);
+                }
+            });
+            boolean acquired;
+            synchronized (lock) {
+                acquired = inFlight < Math.max(1, (int) limit);
+                if (acquired) {
+                    inFlight++;
+                } else {
+                    waiters.addLast(sink);
+                }
+            }
+            if (acquired) {
+                sink.success(new Permit());
+            }
+        })
+                // a permit granted to a waiter cancelled in the meantime is given back
+                .doOnDiscard(Permit.class, permit -> release(permit).subscribe());
+    }
+
+    private Mono<Void> release(Permit permit) {
+        return Mono.fromRunnable(() -> {
+            if (permit.released.compareAndSet(false, true)) {
+                synchronized (lock) {
+                    inFlight--;
+                }
+                grantWaiters();
+            }
+        });
+    }
+
+    /**
+     * Completes the waiters outside of the lock, they subscribe their request right away.
+     */
+    private void grantWaiters() {
+        List<MonoSink<Permit>> granted = new ArrayList<>();
+        synchronized (lock) {
+            while (!waiters.isEmpty() && inFlight < Math.max(1, (int) limit)) {
+                granted.add(waiters.removeFirst());
+                inFlight++;
+            }
+        }
+        granted.forEach(sink -> sink.success(new Permit()));
+    }
+
+    /**
+     * Waits for a token of the bucket of the API key, the bucket can go below zero: each request then waits for
+     * the tokens reserved before its own.
+     */
+    private Mono<Void> throttle() {
+        return Mono.defer(() -> {
+            QureConfiguration.Limiter settings = qureConfiguration.getLimiter();
+            if (settings.getRequestsPerSecond() <= 0) {
+                return Mono.empty();
+            }
+            TokenBucket bucket = tokenBuckets.computeIfAbsent(qureConfiguration.getAuthorization(), key -> new TokenBucket());
+            Duration wait = bucket.reserve(settings.getRequestsPerSecond(), settings.getBurst());
+            return wait.isZero() ? Mono.empty() : Mono.delay(wait).then();
+        });
+    }
+
+    private void onResponse(String endpoint, HttpStatus status, long startNanos) {
+        long latencyNanos = System.nanoTime() - startNanos;
+        boolean overloaded = status == HttpStatus.TOO_MANY_REQUESTS
+                // a pending result is answered with a 503
+                || (status == HttpStatus.SERVICE_UNAVAILABLE && !QureClient.RESULTS.equals(endpoint));
+        if (!overloaded && !QureClient.UPLOAD.equals(endpoint)) {
+            overloaded = isSlow(endpoint, latencyNanos);
+        }
+        if (overloaded) {
+            decrease(startNanos, status.toString());
+        } else {
+            increase();
+        }
+    }
+
+    private void onError(Permit permit, Throwable error) {
+        if (error instanceof TimeoutException || error.getCause() instanceof TimeoutException) {
+            decrease(permit.acquiredNanos, "timeout");
+        }
+    }
+
+    /**
+     * Compares the latency with the average of the endpoint, then adds it to the average.
+     */
+    private boolean isSlow(String endpoint, long latencyNanos) {
+        synchronized (lock) {
+            Double average = averageLatencies.get(endpoint);
+            averageLatencies.put(endpoint, average == null
+                    ? latencyNanos
+                    : average + LATENCY_SMOOTHING * (latencyNanos - average));
+            return average != null && latencyNanos > average * qureConfiguration.getLimiter().getLatencyTolerance();
+        }
+    }
+
+    private void increase() {
+        synchronized (lock) {
+            QureConfiguration.Limiter settings = qureConfiguration.getLimiter();
+            // the limit only grows when it is what holds the requests back
+            if (inFlight + waiters.size() >= limit / 2) {
+                limit = Math.min(settings.getMaxLimit(), limit + 1 / limit);
+            }
+        }
+        grantWaiters();
+    }
+
+    private void decrease(long startNanos, String reason) {
+        synchronized (lock) {
+            if (startNanos - lastDecreaseNanos < 0) {
+                return;
+            }
+            QureConfiguration.Limiter settings = qureConfiguration.getLimiter();
+            limit = Math.max(settings.getMinLimit(), limit * settings.getBackoffRatio());
+            lastDecreaseNanos = System.nanoTime();
+            log.debug("concurrency limit decreased to {} ({})", limit, reason);
+        }
+    }
+
+    private static class Permit {
+        private final long acquiredNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+    }
+
+    private static class TokenBucket {
+        private double tokens = Double.NaN;
+        private long refilledNanos = System.nanoTime();
+
+        synchronized Duration reserve(double ratePerSecond, int burst) {
+            long now = System.nanoTime();
+            tokens = Double.isNaN(tokens)
+                    ? burst
+                    : Math.min(burst, tokens + (now - refilledNanos) * ratePerSecond / 1e9);
+            refilledNanos = now;
+            tokens -= 1;
+            return tokens >= 0 ? Duration.ZERO : Duration.ofNanos((long) (-tokens * 1e9 / ratePerSecond));
+        }
+    }
+}
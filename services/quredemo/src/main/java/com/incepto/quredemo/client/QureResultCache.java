@@ -0,0 +1,364 @@
+package com.incepto.quredemo.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of the results and downloaded objects of the instances already processed.
+ * <p>
+ * Each instance has its own directory holding the result JSON and one file per downloaded object.
+ * The index is rebuilt from the directories at startup: the result file modification time is the
+ * creation time used for the TTL, the directory modification time is the last access used for the LRU eviction.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class QureResultCache {
+
+    private static final String RESULT_FILE = "result.json";
+    private static final String OBJECT_PREFIX = "object-";
+    private static final String TEMP_SUFFIX = ".part";
+    private static final Pattern DICOM_UID = Pattern.compile("[0-9]+(\\.[0-9]+)*");
+    private static final int MAX_UID_LENGTH = 64;
+
+    private static final DataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private final QureConfiguration qureConfiguration;
+    private final ObjectMapper objectMapper;
+
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    @PostConstruct
+    public void loadIndex() {
+        if (!isEnabled()) {
+            return;
+        }
+        Path directory = cacheDirectory();
+        try {
+            Files.createDirectories(directory);
+            List<Entry> entries;
+            try (Stream<Path> paths = Files.list(directory)) {
+                entries = paths.filter(Files::isDirectory)
+                        .map(this::readEntry)
+                        .flatMap(Optional::stream)
+                        .sorted(Comparator.comparing(entry -> entry.lastAccess))
+                        .collect(Collectors.toList());
+            }
+            synchronized (index) {
+                entries.forEach(entry -> {
+                    index.put(entry.key, entry);
+                    totalBytes += entry.bytes;
+                });
+                evict();
+            }
+            log.info("loaded {} cached results ({} bytes)", entries.size(), totalBytes);
+        } catch (IOException e) {
+            log.warn("could not load the result cache index from {}", directory, e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return qureConfiguration.getCache().isEnabled();
+    }
+
+    public Optional<QureResultResponseDto> getResult(String instanceUid) {
+        String key = key(instanceUid);
+        if (!isEnabled() || !touch(key)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(objectMapper.readValue(entryDirectory(key).resolve(RESULT_FILE).toFile(),
+                    QureResultResponseDto.class));
+        } catch (IOException e) {
+            log.warn("could not read the cached result of {}", instanceUid, e);
+            remove(key);
+            return Optional.empty();
+        }
+    }
+
+    public void putResult(String instanceUid, QureResultResponseDto result) {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = key(instanceUid);
+        try {
+            Path entryDirectory = Files.createDirectories(entryDirectory(key));
+            Path tempFile = Files.createTempFile(entryDirectory, RESULT_FILE, TEMP_SUFFIX);
+            Files.write(tempFile, objectMapper.writeValueAsBytes(result));
+            Path resultFile = entryDirectory.resolve(RESULT_FILE);
+            long replacedBytes = Files.exists(resultFile) ? Files.size(resultFile) : 0;
+            Files.move(tempFile, resultFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (index) {
+                Entry entry = index.computeIfAbsent(key, k -> new Entry(k, Instant.now(), Instant.now(), 0));
+                entry.createdAt = Files.getLastModifiedTime(resultFile).toInstant();
+                addBytes(entry, Files.size(resultFile) - replacedBytes);
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("could not cache the result of {}", instanceUid, e);
+        }
+    }
+
+    public Optional<Path> getObject(String instanceUid, String uri) {
+        String key = key(instanceUid);
+        if (!isEnabled() || !touch(key)) {
+            return Optional.empty();
+        }
+        Path objectFile = objectFile(key, uri);
+        return Files.isRegularFile(objectFile) ? Optional.of(objectFile) : Optional.empty();
+    }
+
+    public Flux<DataBuffer> readObject(Path objectFile) {
+        return DataBufferUtils.read(objectFile, BUFFER_FACTORY, DicomMultipartRelatedHttpMessageWriter.DEFAULT_FILE_CHUNK_SIZE);
+    }
+
+    /**
+     * Copies the buffers to the cache as they go through, the object is only added once fully received.
+     */
+    public Flux<DataBuffer> cacheObject(String instanceUid, String uri, Flux<DataBuffer> content) {
+        if (!isEnabled()) {
+            return content;
+        }
+        String key = key(instanceUid);
+        return Flux.defer(() -> {
+            Path tempFile;
+            AsynchronousFileChannel channel;
+            try {
+                Path entryDirectory = Files.createDirectories(entryDirectory(key));
+                tempFile = Files.createTempFile(entryDirectory, OBJECT_PREFIX, TEMP_SUFFIX);
+                channel = AsynchronousFileChannel.open(tempFile, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                log.warn("could not cache an object of {}", instanceUid, e);
+                return content;
+            }
+            return DataBufferUtils.write(content, channel)
+                    .doOnComplete(() -> {
+                        closeChannel(channel);
+                        commitObject(key, tempFile, objectFile(key, uri));
+                    })
+                    .doOnError(e -> {
+                        closeChannel(channel);
+                        deleteFile(tempFile);
+                    })
+                    .doOnCancel(() -> {
+                        closeChannel(channel);
+                        deleteFile(tempFile);
+                    });
+        });
+    }
+
+    /**
+     * Adds a downloaded file to the cache, as a hard link when the cache is on the same file system.
+     */
+    public Mono<Void> putObject(String instanceUid, String uri, Path file) {
+        if (!isEnabled()) {
+            return Mono.empty();
+        }
+        String key = key(instanceUid);
+        return Mono.<Void>fromRunnable(() -> {
+            Path tempFile = null;
+            try {
+                Path entryDirectory = Files.createDirectories(entryDirectory(key));
+                tempFile = Files.createTempFile(entryDirectory, OBJECT_PREFIX, TEMP_SUFFIX);
+                try {
+                    Files.delete(tempFile);
+                    Files.createLink(tempFile, file);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(file, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                commitObject(key, tempFile, objectFile(key, uri));
+            } catch (IOException e) {
+                log.warn("could not cache an object of {}", instanceUid, e);
+                if (tempFile != null) {
+                    deleteFile(tempFile);
+                }
+            }
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private void commitObject(String key, Path tempFile, Path objectFile) {
+        try {
+            long replacedBytes = Files.exists(objectFile) ? Files.size(objectFile) : 0;
+            Files.move(tempFile, objectFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (index) {
+                Entry entry = index.computeIfAbsent(key, k -> new Entry(k, Instant.now(), Instant.now(), 0));
+                addBytes(entry, Files.size(objectFile) - replacedBytes);
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("could not cache an object of {}", key, e);
+            deleteFile(tempFile);
+        }
+    }
+
+    /**
+     * Marks the entry as recently used, expired entries are removed.
+     */
+    private boolean touch(String key) {
+        synchronized (index) {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return false;
+            }
+            if (isExpired(entry)) {
+                remove(key);
+                return false;
+            }
+        }
+        try {
+            Files.setLastModifiedTime(entryDirectory(key), FileTime.from(Instant.now()));
+        } catch (IOException e) {
+            log.debug("could not update the last access of {}", key, e);
+        }
+        return true;
+    }
+
+    private void addBytes(Entry entry, long bytes) {
+        entry.bytes += bytes;
+        totalBytes += bytes;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return entry.createdAt.plus(qureConfiguration.getCache().getTtl()).isBefore(Instant.now());
+    }
+
+    /**
+     * Removes the expired entries then the least recently used ones until the cache fits its maximum size.
+     */
+    private void evict() {
+        index.values().removeIf(entry -> {
+            if (isExpired(entry)) {
+                deleteEntry(entry);
+                return true;
+            }
+            return false;
+        });
+        Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+        while (totalBytes > qureConfiguration.getCache().getMaxBytes() && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            deleteEntry(entry);
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (index) {
+            Entry entry = index.remove(key);
+            if (entry != null) {
+                deleteEntry(entry);
+            }
+        }
+    }
+
+    private void deleteEntry(Entry entry) {
+        totalBytes -= entry.bytes;
+        try (Stream<Path> files = Files.walk(entryDirectory(entry.key))) {
+            files.sorted(Comparator.reverseOrder()).forEach(this::deleteFile);
+        } catch (IOException e) {
+            log.warn("could not delete the cached result of {}", entry.key, e);
+        }
+    }
+
+    private Optional<Entry> readEntry(Path entryDirectory) {
+        Path resultFile = entryDirectory.resolve(RESULT_FILE);
+        if (!Files.isRegularFile(resultFile)) {
+            return Optional.empty();
+        }
+        try (Stream<Path> files = Files.list(entryDirectory)) {
+            long bytes = 0;
+            for (Path file : files.collect(Collectors.toList())) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    deleteFile(file);
+                } else {
+                    bytes += Files.size(file);
+                }
+            }
+            return Optional.of(new Entry(entryDirectory.getFileName().toString(),
+                    Files.getLastModifiedTime(resultFile).toInstant(),
+                    Files.getLastModifiedTime(entryDirectory).toInstant(),
+                    bytes));
+        } catch (IOException e) {
+            log.warn("could not read the cache entry {}", entryDirectory, e);
+            return Optional.empty();
+        }
+    }
+
+    private Path cacheDirectory() {
+        return Path.of(qureConfiguration.getCache().getDirectory());
+    }
+
+    /**
+     * The key is the directory name of the entry: a valid DICOM UID is kept as it is, anything else is hashed so that
+     * a UID such as ".." taken from a file name or a STOW-RS request never resolves outside the cache directory.
+     */
+    private static String key(String instanceUid) {
+        return instanceUid.length() <= MAX_UID_LENGTH && DICOM_UID.matcher(instanceUid).matches()
+                ? instanceUid
+                : "uid-" + DigestUtils.md5DigestAsHex(instanceUid.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Path entryDirectory(String key) {
+        return cacheDirectory().resolve(key);
+    }
+
+    private Path objectFile(String key, String uri) {
+        return entryDirectory(key).resolve(OBJECT_PREFIX + DigestUtils.md5DigestAsHex(uri.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void closeChannel(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("could not close the cache file", e);
+        }
+    }
+
+    private void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("could not delete {}", file, e);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Entry {
+        private final String key;
+        private Instant createdAt;
+        private final Instant lastAccess;
+        private long bytes;
+    }
+}
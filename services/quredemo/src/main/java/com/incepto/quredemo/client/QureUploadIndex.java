@@ -0,0 +1,163 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Index of the SHA-256 of the files accepted by Qure, used to skip the upload of identical files.
+ * <p>
+ * The SHA-256 of an uploaded file, and of its first chunk, are computed while it is streamed. To look for a duplicate
+ * without reading every file twice, the index also keeps the size and the digest of the first chunk of each file: the
+ * first chunk of a file is only read before its upload when its size matches an accepted upload, and the file is only
+ * fully hashed when both match. The index is an append-only text file loaded at startup, one
+ * {@code sha256 size headSha256 instanceUid} line per accepted file.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class QureUploadIndex {
+
+    private static final String SEPARATOR = " ";
+
+    private final QureConfiguration qureConfiguration;
+
+    private final Map<String, String> instanceUidsByDigest = new HashMap<>();
+    private final Set<String> headKeys = new HashSet<>();
+    private final Set<Long> sizes = new HashSet<>();
+
+    @PostConstruct
+    public void load() {
+        if (!isEnabled()) {
+            return;
+        }
+        Path indexPath = indexPath();
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(indexPath, StandardCharsets.UTF_8);
+            synchronized (instanceUidsByDigest) {
+                for (String line : lines) {
+                    String[] columns = line.split(SEPARATOR);
+                    if (columns.length == 4) {
+                        instanceUidsByDigest.put(columns[0], columns[3]);
+                        headKeys.add(columns[1] + SEPARATOR + columns[2]);
+                        sizes.add(Long.parseLong(columns[1]));
+                    }
+                }
+            }
+            log.info("loaded {} uploaded file digests", instanceUidsByDigest.size());
+        } catch (IOException e) {
+            log.warn("could not load the upload index {}", indexPath, e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return qureConfiguration.getDedup().isEnabled();
+    }
+
+    /**
+     * Returns the instance UID of an accepted upload with the same content as the file.
+     */
+    public Optional<String> findDuplicate(Path path) throws IOException {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        long size = Files.size(path);
+        synchronized (instanceUidsByDigest) {
+            if (!sizes.contains(size)) {
+                return Optional.empty();
+            }
+        }
+        String headKey = headKey(path);
+        synchronized (instanceUidsByDigest) {
+            if (!headKeys.contains(headKey)) {
+                return Optional.empty();
+            }
+        }
+        String digest = toHex(digest(path));
+        synchronized (instanceUidsByDigest) {
+            return Optional.ofNullable(instanceUidsByDigest.get(digest));
+        }
+    }
+
+    /**
+     * Records a file accepted by Qure, with the digests computed while it was uploaded.
+     */
+    public void record(DigestingFileSystemResource file, String instanceUid) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            String hexDigest = toHex(file.digest());
+            String headKey = file.getStreamedBytes() + SEPARATOR + toHex(file.headDigest());
+            synchronized (instanceUidsByDigest) {
+                if (instanceUidsByDigest.put(hexDigest, instanceUid) == null) {
+                    headKeys.add(headKey);
+                    sizes.add(file.getStreamedBytes());
+                    Files.writeString(indexPath(), hexDigest + SEPARATOR + headKey + SEPARATOR + instanceUid + "\n",
+                            StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("could not record the upload of {}", file.getFile(), e);
+        }
+    }
+
+    private String headKey(Path path) throws IOException {
+        MessageDigest messageDigest = DigestingFileSystemResource.newMessageDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(DigestingFileSystemResource.HEAD_SIZE);
+            int read = 0;
+            while (head.hasRemaining() && read >= 0) {
+                read = channel.read(head);
+            }
+            head.flip();
+            messageDigest.update(head);
+            return channel.size() + SEPARATOR + toHex(messageDigest.digest());
+        }
+    }
+
+    private byte[] digest(Path path) throws IOException {
+        MessageDigest messageDigest = DigestingFileSystemResource.newMessageDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(DigestingFileSystemResource.HEAD_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return messageDigest.digest();
+    }
+
+    private Path indexPath() {
+        return Path.of(qureConfiguration.getDedup().getIndexPath());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
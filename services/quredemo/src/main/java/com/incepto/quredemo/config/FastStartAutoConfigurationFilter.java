@@ -0,0 +1,54 @@
+package com.incepto.quredemo.config;
+
+import org.springframework.boot.autoconfigure.AutoConfigurationImportFilter;
+import org.springframework.boot.autoconfigure.AutoConfigurationMetadata;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+
+import java.util.Set;
+
+/**
+ * Keeps only the auto-configurations a command line run needs when the {@value #PROFILE} profile is active: the
+ * others are filtered out before their classes are loaded or their conditions evaluated. Without the profile every
+ * auto-configuration goes through, the STOW-RS receiver and the actuator endpoints need them.
+ */
+public class FastStartAutoConfigurationFilter implements AutoConfigurationImportFilter, EnvironmentAware {
+
+    public static final String PROFILE = "fast-start";
+
+    private static final String AUTOCONFIGURE = "org.springframework.boot.autoconfigure.";
+    private static final String ACTUATE_AUTOCONFIGURE = "org.springframework.boot.actuate.autoconfigure.";
+
+    /**
+     * Binding of {@link QureConfiguration}, the {@code ObjectMapper} of the journal and the cache, the
+     * {@code WebClient.Builder} and its codecs, the meter registry and the {@code http.client.requests} metrics.
+     */
+    static final Set<String> AUTO_CONFIGURATIONS = Set.of(
+            AUTOCONFIGURE + "context.ConfigurationPropertiesAutoConfiguration",
+            AUTOCONFIGURE + "context.PropertyPlaceholderAutoConfiguration",
+            AUTOCONFIGURE + "jackson.JacksonAutoConfiguration",
+            AUTOCONFIGURE + "http.codec.CodecsAutoConfiguration",
+            AUTOCONFIGURE + "web.reactive.function.client.WebClientAutoConfiguration",
+            ACTUATE_AUTOCONFIGURE + "metrics.MetricsAutoConfiguration",
+            ACTUATE_AUTOCONFIGURE + "metrics.CompositeMeterRegistryAutoConfiguration",
+            ACTUATE_AUTOCONFIGURE + "metrics.export.simple.SimpleMetricsExportAutoConfiguration",
+            ACTUATE_AUTOCONFIGURE + "metrics.web.client.HttpClientMetricsAutoConfiguration");
+
+    private boolean fastStart;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        fastStart = environment.acceptsProfiles(Profiles.of(PROFILE));
+    }
+
+    @Override
+    public boolean[] match(String[] autoConfigurationClasses, AutoConfigurationMetadata autoConfigurationMetadata) {
+        boolean[] matches = new boolean[autoConfigurationClasses.length];
+        for (int i = 0; i < autoConfigurationClasses.length; i++) {
+            matches[i] = !fastStart || autoConfigurationClasses[i] == null
+                    || AUTO_CONFIGURATIONS.contains(autoConfigurationClasses[i]);
+        }
+        return matches;
+    }
+}
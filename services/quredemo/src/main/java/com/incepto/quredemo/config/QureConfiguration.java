@@ -7,10 +7,14 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.validation.annotation.Validated;
 
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -54,7 +58,447 @@ public class QureConfiguration {
 
     private List<QureFileType> resultTypes = List.of(QureFileType.PDF, QureFileType.OVERLAY);
 
+    private boolean http2Enabled;
+
+    /**
+     * File the metrics are written to at the end of a run, nothing is written when empty.
+     */
+    private String metricsPath = "";
+
+    @Valid
+    private Pool pool = new Pool();
+
+    @Valid
+    private Batch batch = new Batch();
+
+    @Valid
+    private Pipeline pipeline = new Pipeline();
+
+    @Valid
+    private Polling polling = new Polling();
+
+    @Valid
+    private Upload upload = new Upload();
+
+    @Valid
+    private Cache cache = new Cache();
+
+    @Valid
+    private Dedup dedup = new Dedup();
+
+    @Valid
+    private Download download = new Download();
+
+    @Valid
+    private Memory memory = new Memory();
+
+    @Valid
+    private Journal journal = new Journal();
+
+    @Valid
+    private Limiter limiter = new Limiter();
+
+    @Valid
+    private Health health = new Health();
+
+    @Valid
+    private Watch watch = new Watch();
+
+    @Valid
+    private Stow stow = new Stow();
+
     public boolean isEnabled() {
         return enabled && VALID_AUTH.matcher(authorization).matches();
     }
+
+    /**
+     * Settings of the connection pool shared by every request sent to Qure.
+     */
+    @Data
+    public static class Pool {
+
+        @Min(1)
+        private int maxConnections = 50;
+
+        /**
+         * Maximum number of requests waiting for a connection, -1 for no limit.
+         */
+        @Min(-1)
+        private int pendingAcquireMaxCount = -1;
+
+        @DurationMin(seconds = 1)
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(45);
+
+        @DurationMin(seconds = 1)
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+
+        @DurationMin(seconds = 1)
+        private Duration maxLifeTime = Duration.ofMinutes(5);
+
+        /**
+         * Publishes the reactor-netty pool gauges.
+         */
+        private boolean metricsEnabled = true;
+    }
+
+    /**
+     * Settings of the batch mode, used instead of inputPath / outputPath when a directory or a manifest is set.
+     */
+    @Data
+    public static class Batch {
+
+        private String inputDirectory = "";
+
+        /**
+         * File listing one DICOM path per line, optionally followed by a comma and its SOP Instance UID.
+         */
+        private String manifestPath = "";
+
+        @NotEmpty
+        private String outputDirectory = "output";
+
+        public boolean isEnabled() {
+            return !inputDirectory.isEmpty() || !manifestPath.isEmpty();
+        }
+    }
+
+    /**
+     * Settings of the stages of the batch pipeline, the studies handed over by a stage wait in the queue of the next
+     * one and a full queue holds the stage before it.
+     */
+    @Data
+    public static class Pipeline {
+
+        /**
+         * Reads the SOP Instance UID of the files without one in the manifest, and the state of the job journal.
+         */
+        @Valid
+        private Stage read = Stage.of(2, 16);
+
+        @Valid
+        private Stage upload = Stage.of(4, 8);
+
+        /**
+         * Studies polled at the same time, they only wait between two polls.
+         */
+        @Valid
+        private Stage result = Stage.of(64, 64);
+
+        /**
+         * Studies downloaded at the same time, each one with download.concurrency files at the same time.
+         */
+        @Valid
+        private Stage download = Stage.of(4, 8);
+
+        /**
+         * Studies recorded as downloaded in the job journal.
+         */
+        @Valid
+        private Stage persist = Stage.of(8, 64);
+
+        @Data
+        public static class Stage {
+
+            @Min(1)
+            @Max(256)
+            private int concurrency;
+
+            @Min(1)
+            @Max(1024)
+            private int queueSize;
+
+            static Stage of(int concurrency, int queueSize) {
+                Stage stage = new Stage();
+                stage.setConcurrency(concurrency);
+                stage.setQueueSize(queueSize);
+                return stage;
+            }
+        }
+    }
+
+    /**
+     * Settings of the daemon mode: the files dropped in the input directories are processed as they arrive,
+     * until the application is stopped.
+     */
+    @Data
+    public static class Watch {
+
+        private List<String> inputDirectories = new ArrayList<>();
+
+        @NotEmpty
+        private String outputDirectory = "outbox";
+
+        /**
+         * Directories the processed and failed input files are moved to, they are left in place when empty.
+         */
+        private String processedDirectory = "";
+
+        private String failedDirectory = "";
+
+        /**
+         * Longest time between two scans of the input directories, they are also scanned on file system events.
+         */
+        @DurationMin(millis = 100)
+        private Duration pollInterval = Duration.ofSeconds(5);
+
+        /**
+         * Time a file must keep the same size and modification time before it is processed.
+         */
+        @DurationMin(millis = 100)
+        private Duration stableTime = Duration.ofSeconds(2);
+
+        public boolean isEnabled() {
+            return !inputDirectories.isEmpty();
+        }
+    }
+
+    /**
+     * Settings of the STOW-RS receiver: the application runs as a server on server.port and the instances stored
+     * with POST /studies are streamed to Qure as they arrive, their reports are written to the output directory.
+     */
+    @Data
+    public static class Stow {
+
+        private boolean enabled;
+
+        @NotEmpty
+        private String outputDirectory = "stow";
+
+        /**
+         * Largest size of the headers of a part, a larger part is rejected.
+         */
+        @Min(1024)
+        @Max(1024 * 1024)
+        private int maxPartHeaderSize = 16 * 1024;
+    }
+
+    /**
+     * Settings of the result polling, the backoff between two polls is capped by retryRate.
+     */
+    @Data
+    public static class Polling {
+
+        /**
+         * Delay before the first poll, used until completion times have been recorded.
+         */
+        @DurationMin(millis = 100)
+        private Duration initialDelay = Duration.ofSeconds(5);
+
+        @DurationMin(millis = 100)
+        private Duration minBackoff = Duration.ofMillis(500);
+
+        @DecimalMin("0.0")
+        @DecimalMax("1.0")
+        private double jitter = 0.5;
+
+        @DurationMin(seconds = 1)
+        private Duration deadline = Duration.ofMinutes(5);
+
+        /**
+         * Number of recent completion times used to learn the delay before the first poll.
+         */
+        @Min(1)
+        private int historySize = 20;
+    }
+
+    /**
+     * Settings of multi-instance uploads, a series is split into requests holding at most these many parts / bytes.
+     */
+    @Data
+    public static class Upload {
+
+        @Min(1)
+        private int maxPartsPerRequest = 50;
+
+        @Min(1)
+        private long maxBytesPerRequest = 256L * 1024 * 1024;
+
+        /**
+         * Compresses the upload requests with gzip, worth it when the uplink is slower than the deflater.
+         */
+        private boolean compressionEnabled;
+
+        @Min(1)
+        @Max(9)
+        private int compressionLevel = 6;
+    }
+
+    /**
+     * Settings of the on-disk cache of results and downloaded objects, keyed by SOP Instance UID.
+     */
+    @Data
+    public static class Cache {
+
+        private boolean enabled;
+
+        @NotEmpty
+        private String directory = ".qure-cache";
+
+        @Min(1)
+        private long maxBytes = 1024L * 1024 * 1024;
+
+        @DurationMin(minutes = 1)
+        private Duration ttl = Duration.ofDays(30);
+    }
+
+    /**
+     * Settings of the upload deduplication, files with the same SHA-256 as an accepted upload are not sent again.
+     */
+    @Data
+    public static class Dedup {
+
+        private boolean enabled;
+
+        @NotEmpty
+        private String indexPath = ".qure-uploads.idx";
+    }
+
+    /**
+     * Settings of the background health probe and of the circuit breaker it drives.
+     */
+    @Data
+    public static class Health {
+
+        /**
+         * Off by default: a command line run sends a few requests and does not need a background probe.
+         */
+        private boolean enabled;
+
+        @DurationMin(seconds = 1)
+        private Duration interval = Duration.ofSeconds(10);
+
+        @DurationMin(millis = 100)
+        private Duration recoveryInterval = Duration.ofSeconds(1);
+
+        @DurationMin(millis = 100)
+        private Duration timeout = Duration.ofSeconds(5);
+
+        /**
+         * Requests in a row failing to reach Qure which open the breaker before the next probe.
+         */
+        @Min(1)
+        private int failureThreshold = 5;
+
+        /**
+         * Longest wait of a request for Qure to be available again, 0 to fail right away.
+         */
+        private Duration queueTimeout = Duration.ofMinutes(10);
+    }
+
+    /**
+     * Settings of the adaptive limit of the requests in flight and of the optional rate quota of the API key.
+     */
+    @Data
+    public static class Limiter {
+
+        private boolean enabled = true;
+
+        @Min(1)
+        private int initialLimit = 20;
+
+        @Min(1)
+        private int minLimit = 1;
+
+        @Min(1)
+        private int maxLimit = 200;
+
+        /**
+         * Factor applied to the limit on a 429, a 503, a timeout or a slow response.
+         */
+        @DecimalMin("0.1")
+        @DecimalMax("0.99")
+        private double backoffRatio = 0.9;
+
+        /**
+         * A response slower than this factor times the average latency of its endpoint decreases the limit.
+         */
+        @DecimalMin("1.1")
+        private double latencyTolerance = 3.0;
+
+        /**
+         * Requests per second allowed for the API key, 0 for no quota.
+         */
+        @DecimalMin("0")
+        private double requestsPerSecond;
+
+        @Min(1)
+        private int burst = 10;
+    }
+
+    /**
+     * Settings of the journal of the study states, used to resume the studies interrupted by a restart.
+     */
+    @Data
+    public static class Journal {
+
+        private boolean enabled;
+
+        @NotEmpty
+        private String path = ".qure-jobs.journal";
+
+        /**
+         * Records of this window are synced to disk together.
+         */
+        @DurationMax(seconds = 1)
+        private Duration commitDelay = Duration.ofMillis(5);
+
+        @Min(1)
+        private int compactionThreshold = 10000;
+    }
+
+    /**
+     * Settings of the download of the report and of the resultTypes artifacts of a study.
+     */
+    @Data
+    public static class Download {
+
+        /**
+         * Artifacts of a same study downloaded at the same time.
+         */
+        @Min(1)
+        @Max(16)
+        private int concurrency = 4;
+
+        /**
+         * Attempts of a download, each one resumes from the bytes already received.
+         */
+        @Min(1)
+        @Max(20)
+        private int maxAttempts = 5;
+
+        @DurationMin(millis = 100)
+        @DurationMax(minutes = 1)
+        private Duration retryBackoff = Duration.ofSeconds(1);
+
+        /**
+         * Byte ranges of a same object downloaded at the same time, 1 downloads objects as a whole.
+         */
+        @Min(1)
+        @Max(16)
+        private int parallelRanges = 1;
+
+        /**
+         * Objects smaller than this size are downloaded as a whole.
+         */
+        @Min(1024)
+        private long parallelThreshold = 16L * 1024 * 1024;
+    }
+
+    /**
+     * Settings of the memory budget shared by the buffers of every upload and download in flight.
+     */
+    @Data
+    public static class Memory {
+
+        /**
+         * When disabled, the buffers are read and received without waiting for budget, in the buffers of the HTTP client.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Bytes of the buffers read from the files to upload, or received from a download, not released yet.
+         */
+        @Min(1024 * 1024)
+        private long maxBytesInFlight = 64L * 1024 * 1024;
+    }
 }
@@ -1,7 +1,12 @@
 package com.incepto.quredemo.config;
 
+/**
+ * Artifacts of a result which can be downloaded besides the DICOM report.
+ */
 public enum QureFileType {
     GSPS,
     PDF,
-    OVERLAY
+    OVERLAY,
+    SR,
+    GT
 }
@@ -0,0 +1,55 @@
+package com.incepto.quredemo.config;
+
+import com.incepto.quredemo.client.QureClient;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import org.springframework.boot.actuate.metrics.web.reactive.client.WebClientExchangeTags;
+import org.springframework.boot.actuate.metrics.web.reactive.client.WebClientExchangeTagsProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Metrics of the requests sent to Qure, recorded by the actuator WebClient instrumentation.
+ */
+@Configuration
+public class QureMetricsConfiguration {
+
+    private static final String HTTP_CLIENT_REQUESTS = "http.client.requests";
+    private static final String QURE_METRICS_PREFIX = "qure.";
+
+    /**
+     * Tags the requests by Qure endpoint instead of uri, result and download uris hold one value per instance.
+     */
+    @Bean
+    public WebClientExchangeTagsProvider qureWebClientExchangeTagsProvider() {
+        return (request, response, throwable) -> Tags.of(
+                WebClientExchangeTags.method(request),
+                Tag.of("endpoint", request.attribute(QureClient.ENDPOINT_ATTRIBUTE).map(Object::toString).orElse("none")),
+                response != null ? WebClientExchangeTags.status(response) : WebClientExchangeTags.status(throwable),
+                WebClientExchangeTags.clientName(request),
+                WebClientExchangeTags.outcome(response));
+    }
+
+    /**
+     * Publishes latency histograms, and percentiles for the metrics file, for the requests and the study timers.
+     */
+    @Bean
+    public MeterFilter qureHistogramMeterFilter() {
+        return new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (id.getName().equals(HTTP_CLIENT_REQUESTS) || id.getName().startsWith(QURE_METRICS_PREFIX)) {
+                    return DistributionStatisticConfig.builder()
+                            .percentilesHistogram(true)
+                            .percentiles(0.5, 0.95, 0.99)
+                            .build()
+                            .merge(config);
+                }
+                return config;
+            }
+        };
+    }
+}
@@ -0,0 +1,56 @@
+package com.incepto.quredemo.config;
+
+import com.incepto.quredemo.client.QureFlightRecorder;
+import com.incepto.quredemo.client.QureRequestLimiter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Builds the single {@link WebClient} used to talk to Qure so that connections
+ * (and their TLS sessions) are pooled and reused between requests.
+ */
+@Configuration
+public class QureWebClientConfiguration {
+
+    private static final String POOL_NAME = "qure";
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider qureConnectionProvider(QureConfiguration qureConfiguration) {
+        QureConfiguration.Pool pool = qureConfiguration.getPool();
+        return ConnectionProvider.builder(POOL_NAME)
+                .maxConnections(pool.getMaxConnections())
+                .pendingAcquireMaxCount(pool.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(pool.getPendingAcquireTimeout())
+                .maxIdleTime(pool.getMaxIdleTime())
+                .maxLifeTime(pool.getMaxLifeTime())
+                .metrics(pool.isMetricsEnabled())
+                .build();
+    }
+
+    @Bean
+    public HttpClient qureHttpClient(ConnectionProvider qureConnectionProvider, QureConfiguration qureConfiguration) {
+        HttpClient httpClient = HttpClient.create(qureConnectionProvider)
+                .secure()
+                .followRedirect(true);
+        if (qureConfiguration.isHttp2Enabled()) {
+            // H2 is negotiated through ALPN, servers without it keep using HTTP/1.1
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+        }
+        return QureFlightRecorder.instrument(httpClient);
+    }
+
+    @Bean
+    public WebClient qureWebClient(WebClient.Builder webClientBuilder, HttpClient qureHttpClient,
+                                   QureRequestLimiter qureRequestLimiter) {
+        return webClientBuilder
+                .clientConnector(new ReactorClientHttpConnector(qureHttpClient))
+                .filter(qureRequestLimiter)
+                .filter(QureFlightRecorder.requestEvents())
+                .build();
+    }
+}
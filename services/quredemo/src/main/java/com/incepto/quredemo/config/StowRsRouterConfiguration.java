@@ -0,0 +1,25 @@
+package com.incepto.quredemo.config;
+
+import com.incepto.quredemo.web.StowRsHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+/**
+ * Exposes the STOW-RS endpoint when the application runs as a server with incepto.qure.stow.enabled.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@ConditionalOnProperty(prefix = "incepto.qure.stow", name = "enabled", havingValue = "true")
+public class StowRsRouterConfiguration {
+
+    @Bean
+    public RouterFunction<ServerResponse> stowRsRoutes(StowRsHandler stowRsHandler) {
+        return RouterFunctions.route(RequestPredicates.POST("/studies"), stowRsHandler::store);
+    }
+}
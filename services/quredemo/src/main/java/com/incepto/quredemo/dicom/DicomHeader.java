@@ -0,0 +1,14 @@
+package com.incepto.quredemo.dicom;
+
+import lombok.Value;
+
+/**
+ * Attributes of a DICOM file read from its header, empty when absent.
+ */
+@Value
+public class DicomHeader {
+    String sopInstanceUid;
+    String studyInstanceUid;
+    String modality;
+    String transferSyntaxUid;
+}
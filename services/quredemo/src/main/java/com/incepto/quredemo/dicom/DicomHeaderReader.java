@@ -0,0 +1,265 @@
+package com.incepto.quredemo.dicom;
+
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the identifying attributes of a DICOM file without loading it.
+ * <p>
+ * The file meta information and the data set are parsed element by element, skipping the values which are not
+ * needed, and the reading stops as soon as the last needed attribute is passed: the pixel data is never read,
+ * a few kilobytes usually are. Files without preamble are read as implicit VR little endian data sets.
+ */
+@Component
+public class DicomHeaderReader {
+
+    static final String IMPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2";
+    static final String EXPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2.1";
+    static final String DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2.1.99";
+    static final String EXPLICIT_VR_BIG_ENDIAN = "1.2.840.10008.1.2.2";
+
+    static final int META_INFORMATION_GROUP = 0x0002;
+    static final int TRANSFER_SYNTAX_UID = 0x00020010;
+    static final int MEDIA_STORAGE_SOP_INSTANCE_UID = 0x00020003;
+    static final int SOP_INSTANCE_UID = 0x00080018;
+    static final int MODALITY = 0x00080060;
+    static final int STUDY_INSTANCE_UID = 0x0020000D;
+    static final int PIXEL_DATA = 0x7FE00010;
+
+    private static final int ITEM = 0xFFFEE000;
+    private static final int ITEM_DELIMITATION = 0xFFFEE00D;
+    private static final int SEQUENCE_DELIMITATION = 0xFFFEE0DD;
+    private static final int UNDEFINED_LENGTH = -1;
+
+    private static final int PREAMBLE_SIZE = 128;
+    private static final byte[] MAGIC = {'D', 'I', 'C', 'M'};
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Value representations whose explicit length is on 4 bytes after 2 reserved bytes. */
+    private static final Set<String> LONG_LENGTH_VRS = Set.of(
+            "OB", "OD", "OF", "OL", "OV", "OW", "SQ", "SV", "UC", "UN", "UR", "UT", "UV");
+
+    public DicomHeader read(Path path) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE)) {
+            return read(inputStream);
+        }
+    }
+
+    public DicomHeader read(InputStream inputStream) throws IOException {
+        InputStream markableStream = inputStream.markSupported()
+                ? inputStream
+                : new BufferedInputStream(inputStream, BUFFER_SIZE);
+        Attributes attributes = new Attributes();
+        // the file meta information is always explicit VR little endian
+        ElementInput input = new ElementInput(markableStream, true);
+        if (!input.skipPreamble()) {
+            attributes.transferSyntaxUid = IMPLICIT_VR_LITTLE_ENDIAN;
+            readDataSet(input, false, attributes);
+            return attributes.toHeader();
+        }
+
+        while (input.peekGroup() == META_INFORMATION_GROUP && input.nextTag(true)) {
+            if (input.tag == TRANSFER_SYNTAX_UID) {
+                attributes.transferSyntaxUid = input.readString();
+            } else if (input.tag == MEDIA_STORAGE_SOP_INSTANCE_UID) {
+                attributes.mediaStorageSopInstanceUid = input.readString();
+            } else {
+                input.skipValue(true);
+            }
+        }
+
+        String transferSyntaxUid = attributes.transferSyntaxUid;
+        ElementInput dataSetInput;
+        if (DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN.equals(transferSyntaxUid)) {
+            dataSetInput = new ElementInput(
+                    new InflaterInputStream(markableStream, new Inflater(true), BUFFER_SIZE), true);
+        } else {
+            dataSetInput = new ElementInput(markableStream, !EXPLICIT_VR_BIG_ENDIAN.equals(transferSyntaxUid));
+        }
+        readDataSet(dataSetInput, !IMPLICIT_VR_LITTLE_ENDIAN.equals(transferSyntaxUid), attributes);
+        return attributes.toHeader();
+    }
+
+    private void readDataSet(ElementInput input, boolean explicitVr, Attributes attributes) throws IOException {
+        while (input.nextTag(explicitVr) && input.tag < PIXEL_DATA) {
+            if (input.tag == SOP_INSTANCE_UID) {
+                attributes.sopInstanceUid = input.readString();
+            } else if (input.tag == MODALITY) {
+                attributes.modality = input.readString();
+            } else if (input.tag == STUDY_INSTANCE_UID) {
+                attributes.studyInstanceUid = input.readString();
+            } else if (input.tag > STUDY_INSTANCE_UID) {
+                // the elements are sorted by tag, nothing needed follows
+                return;
+            } else {
+                input.skipValue(explicitVr);
+            }
+        }
+    }
+
+    private static class Attributes {
+        private String transferSyntaxUid = "";
+        private String mediaStorageSopInstanceUid = "";
+        private String sopInstanceUid = "";
+        private String studyInstanceUid = "";
+        private String modality = "";
+
+        private DicomHeader toHeader() {
+            return new DicomHeader(sopInstanceUid.isEmpty() ? mediaStorageSopInstanceUid : sopInstanceUid,
+                    studyInstanceUid, modality, transferSyntaxUid);
+        }
+    }
+
+    /**
+     * Reads the element headers of a stream, one element at a time.
+     */
+    private static class ElementInput {
+
+        private final InputStream inputStream;
+        private final boolean littleEndian;
+        private final byte[] header = new byte[8];
+        private int tag;
+        private int length;
+
+        ElementInput(InputStream inputStream, boolean littleEndian) {
+            this.inputStream = inputStream;
+            this.littleEndian = littleEndian;
+        }
+
+        /**
+         * Skips the preamble and the DICM prefix, the stream is reset to its start when there is none.
+         */
+        boolean skipPreamble() throws IOException {
+            inputStream.mark(PREAMBLE_SIZE + MAGIC.length);
+            byte[] preamble = inputStream.readNBytes(PREAMBLE_SIZE + MAGIC.length);
+            if (preamble.length == PREAMBLE_SIZE + MAGIC.length && preamble[PREAMBLE_SIZE] == MAGIC[0]
+                    && preamble[PREAMBLE_SIZE + 1] == MAGIC[1] && preamble[PREAMBLE_SIZE + 2] == MAGIC[2]
+                    && preamble[PREAMBLE_SIZE + 3] == MAGIC[3]) {
+                return true;
+            }
+            inputStream.reset();
+            return false;
+        }
+
+        /**
+         * Returns the group of the next element without consuming it, -1 at the end of the stream.
+         */
+        int peekGroup() throws IOException {
+            inputStream.mark(2);
+            int read = inputStream.readNBytes(header, 0, 2);
+            inputStream.reset();
+            return read < 2 ? -1 : toShort(header, 0);
+        }
+
+        /**
+         * Reads the next element header, returns false at the end of the stream.
+         */
+        boolean nextTag(boolean explicitVr) throws IOException {
+            int read = inputStream.readNBytes(header, 0, 8);
+            if (read == 0) {
+                return false;
+            }
+            if (read < 8) {
+                throw new EOFException("truncated DICOM element header");
+            }
+            tag = (toShort(header, 0) << 16) | toShort(header, 2);
+            if (!explicitVr || tag == ITEM || tag == ITEM_DELIMITATION || tag == SEQUENCE_DELIMITATION) {
+                length = toInt(header, 4);
+            } else {
+                String vr = new String(header, 4, 2, StandardCharsets.US_ASCII);
+                if (LONG_LENGTH_VRS.contains(vr)) {
+                    byte[] longLength = readFully(4);
+                    length = toInt(longLength, 0);
+                } else {
+                    length = toShort(header, 6);
+                }
+            }
+            return true;
+        }
+
+        String readString() throws IOException {
+            if (length == UNDEFINED_LENGTH) {
+                throw new IOException(String.format("undefined length for the string element (%04X,%04X)",
+                        tag >>> 16, tag & 0xFFFF));
+            }
+            byte[] value = readFully(length);
+            int end = value.length;
+            while (end > 0 && (value[end - 1] == 0 || value[end - 1] == ' ')) {
+                end--;
+            }
+            int start = 0;
+            while (start < end && value[start] == ' ') {
+                start++;
+            }
+            return new String(value, start, end - start, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Skips the value of the current element, the items of sequences of undefined length included.
+         */
+        void skipValue(boolean explicitVr) throws IOException {
+            if (length != UNDEFINED_LENGTH) {
+                skipFully(Integer.toUnsignedLong(length));
+                return;
+            }
+            // sequence (or encapsulated data) of undefined length: skip its items up to the delimitation
+            while (nextTag(explicitVr) && tag != SEQUENCE_DELIMITATION) {
+                if (tag != ITEM) {
+                    throw new IOException(String.format("unexpected element (%04X,%04X) in a sequence",
+                            tag >>> 16, tag & 0xFFFF));
+                }
+                if (length != UNDEFINED_LENGTH) {
+                    skipFully(Integer.toUnsignedLong(length));
+                } else {
+                    while (nextTag(explicitVr) && tag != ITEM_DELIMITATION) {
+                        skipValue(explicitVr);
+                    }
+                }
+            }
+        }
+
+        private byte[] readFully(int size) throws IOException {
+            byte[] value = inputStream.readNBytes(size);
+            if (value.length < size) {
+                throw new EOFException("truncated DICOM element value");
+            }
+            return value;
+        }
+
+        private void skipFully(long size) throws IOException {
+            long remaining = size;
+            while (remaining > 0) {
+                long skipped = inputStream.skip(remaining);
+                if (skipped <= 0) {
+                    if (inputStream.read() < 0) {
+                        throw new EOFException("truncated DICOM element value");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+
+        private int toShort(byte[] bytes, int offset) {
+            return littleEndian
+                    ? (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                    : (bytes[offset] & 0xFF) << 8 | (bytes[offset + 1] & 0xFF);
+        }
+
+        private int toInt(byte[] bytes, int offset) {
+            return littleEndian
+                    ? toShort(bytes, offset) | toShort(bytes, offset + 2) << 16
+                    : toShort(bytes, offset) << 16 | toShort(bytes, offset + 2);
+        }
+    }
+}
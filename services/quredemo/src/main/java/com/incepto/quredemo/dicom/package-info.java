@@ -0,0 +1,6 @@
+@NonNullApi
+@NonNullFields
+package com.incepto.quredemo.dicom;
+
+import org.springframework.lang.NonNullApi;
+import org.springframework.lang.NonNullFields;
@@ -0,0 +1,158 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class QureBatchService {
+
+    private static final String MANIFEST_COMMENT = "#";
+    private static final String MANIFEST_SEPARATOR = ",";
+
+    private final QurePipeline qurePipeline;
+    private final QureConfiguration qureConfiguration;
+    private final QureJobJournal qureJobJournal;
+
+    /**
+     * Processes every study of the configured directory or manifest through the pipeline.
+     */
+    public QureBatchSummary process() {
+        QureConfiguration.Batch batch = qureConfiguration.getBatch();
+        List<QureStudy> studies;
+        try {
+            studies = withPendingJobs(listStudies(batch));
+        } catch (IOException e) {
+            log.error("could not list the batch inputs", e);
+            return new QureBatchSummary(0);
+        }
+
+        log.info("processing {} studies", studies.size());
+        QureBatchSummary summary = new QureBatchSummary(studies.size());
+        qurePipeline.process(Flux.fromIterable(withoutCollisions(studies, summary)))
+                .doOnNext(outcome -> record(outcome, summary))
+                .then()
+                .block();
+
+        log.info(summary.toString());
+        return summary;
+    }
+
+    private void record(QureStudyOutcome outcome, QureBatchSummary summary) {
+        Path inputPath = outcome.getStudy().getInputPath();
+        if (outcome.isSuccess()) {
+            summary.recordSuccess(sizeOf(inputPath));
+        } else {
+            log.error("study {} failed", inputPath, outcome.getError());
+            summary.recordFailure();
+        }
+    }
+
+    /**
+     * Fails the studies whose report would overwrite the report of a study before them.
+     */
+    private List<QureStudy> withoutCollisions(List<QureStudy> studies, QureBatchSummary summary) {
+        Map<Path, QureStudy> studiesByOutputPath = new HashMap<>();
+        List<QureStudy> distinctStudies = new ArrayList<>();
+        for (QureStudy study : studies) {
+            QureStudy previousStudy = studiesByOutputPath.putIfAbsent(study.getOutputPath(), study);
+            if (previousStudy == null) {
+                distinctStudies.add(study);
+            } else {
+                log.error("study {} failed, its report {} would overwrite the report of {}",
+                        study.getInputPath(), study.getOutputPath(), previousStudy.getInputPath());
+                summary.recordFailure();
+            }
+        }
+        return distinctStudies;
+    }
+
+    private List<QureStudy> listStudies(QureConfiguration.Batch batch) throws IOException {
+        Path outputDirectory = Files.createDirectories(Path.of(batch.getOutputDirectory()));
+        if (!batch.getManifestPath().isEmpty()) {
+            return readManifest(Path.of(batch.getManifestPath()), outputDirectory);
+        }
+        try (Stream<Path> files = Files.list(Path.of(batch.getInputDirectory()))) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .sorted()
+                    // the SOP Instance UID is read by the read stage of the pipeline
+                    .map(path -> toStudy(path, "", outputDirectory))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Adds the studies of the journal uploaded by a previous run but not downloaded yet, the input files listed
+     * again are resumed by the pipeline.
+     */
+    private List<QureStudy> withPendingJobs(List<QureStudy> studies) {
+        Set<Path> inputPaths = studies.stream().map(QureStudy::getInputPath).collect(Collectors.toSet());
+        Set<String> instanceUids = studies.stream().map(QureStudy::getInstanceUid).collect(Collectors.toSet());
+        List<QureStudy> pendingStudies = qureJobJournal.pendingJobs().stream()
+                .map(QureJob::getStudy)
+                .filter(study -> !inputPaths.contains(study.getInputPath()) && !instanceUids.contains(study.getInstanceUid()))
+                .collect(Collectors.toList());
+        if (pendingStudies.isEmpty()) {
+            return studies;
+        }
+        log.info("resuming {} studies interrupted by a previous run", pendingStudies.size());
+        List<QureStudy> allStudies = new ArrayList<>(pendingStudies);
+        allStudies.addAll(studies);
+        return allStudies;
+    }
+
+    /**
+     * The reports of a manifest keep the path of their input relative to the manifest directory, so that inputs with
+     * the same name in different directories do not collide; an input outside this directory keeps only its name.
+     */
+    private List<QureStudy> readManifest(Path manifestPath, Path outputDirectory) throws IOException {
+        Path baseDirectory = manifestPath.toAbsolutePath().normalize().getParent();
+        List<QureStudy> studies;
+        try (Stream<String> lines = Files.lines(manifestPath)) {
+            studies = lines.map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith(MANIFEST_COMMENT))
+                    .map(line -> {
+                        String[] columns = line.split(MANIFEST_SEPARATOR, 2);
+                        Path inputPath = baseDirectory.resolve(columns[0].trim()).normalize();
+                        String instanceUid = columns.length > 1 ? columns[1].trim() : "";
+                        Path outputPath = inputPath.startsWith(baseDirectory)
+                                ? baseDirectory.relativize(inputPath)
+                                : inputPath.getFileName();
+                        return new QureStudy(inputPath, instanceUid, outputDirectory.resolve(outputPath));
+                    })
+                    .collect(Collectors.toList());
+        }
+        for (QureStudy study : studies) {
+            Files.createDirectories(study.getOutputPath().getParent());
+        }
+        return studies;
+    }
+
+    private QureStudy toStudy(Path inputPath, String instanceUid, Path outputDirectory) {
+        return new QureStudy(inputPath, instanceUid, outputDirectory.resolve(inputPath.getFileName()));
+    }
+
+    private long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.incepto.quredemo.service.v1;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a batch run, updated concurrently by the studies being processed.
+ */
+public class QureBatchSummary {
+
+    private final int total;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    public QureBatchSummary(int total) {
+        this.total = total;
+    }
+
+    public void recordSuccess(long inputBytes) {
+        succeeded.incrementAndGet();
+        uploadedBytes.addAndGet(inputBytes);
+    }
+
+    public void recordFailure() {
+        failed.incrementAndGet();
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public Duration getElapsed() {
+        return Duration.ofNanos(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public String toString() {
+        double seconds = Math.max(getElapsed().toMillis(), 1) / 1000d;
+        return String.format("batch done: %d studies, %d succeeded, %d failed in %.1f s (%.2f studies/s, %.2f MB/s uploaded)",
+                total, getSucceeded(), getFailed(), seconds,
+                getSucceeded() / seconds, uploadedBytes.get() / seconds / (1024 * 1024));
+    }
+}
@@ -0,0 +1,16 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.client.QureResultResponseDto;
+import lombok.Value;
+import org.springframework.lang.Nullable;
+
+/**
+ * Last state of a study recorded in the job journal, with its result once it is known.
+ */
+@Value
+public class QureJob {
+    QureStudy study;
+    QureJobState state;
+    @Nullable
+    QureResultResponseDto result;
+}
@@ -0,0 +1,284 @@
+package com.incepto.quredemo.service.v1;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Journal of the state of the studies, so that a study interrupted by a crash or a restart is resumed from its last
+ * recorded state instead of being uploaded again.
+ * <p>
+ * The journal is an append-only text file, one {@code state instanceUid inputPath outputPath resultJson} line
+ * (tab separated) per state change. The records of the next {@code commitDelay} are written together and synced
+ * with a single fsync before the studies go on. At startup the journal is replayed, keeping the last state of
+ * each instance, and compacted to one line per instance; it is compacted again once it holds
+ * {@code compactionThreshold} lines and twice as many lines as instances in progress. The downloaded studies are dropped by the
+ * compaction, the journal only holds the studies in progress.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class QureJobJournal {
+
+    private static final String SEPARATOR = "\t";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final QureConfiguration qureConfiguration;
+    private final ObjectMapper objectMapper;
+
+    private final Map<String, QureJob> jobs = new LinkedHashMap<>();
+    private final List<PendingRecord> pendingRecords = new ArrayList<>();
+    private boolean flushScheduled;
+    private boolean closed;
+
+    @Nullable
+    private Scheduler scheduler;
+    @Nullable
+    private FileChannel channel;
+    private long lineCount;
+
+    @PostConstruct
+    public void load() {
+        if (!isEnabled()) {
+            return;
+        }
+        scheduler = Schedulers.newSingle("qure-journal");
+        Path journalPath = journalPath();
+        try {
+            if (Files.exists(journalPath)) {
+                // a line torn by a crash does not parse and is dropped by the compaction
+                for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+                    parse(line).ifPresent(job -> {
+                        synchronized (jobs) {
+                            jobs.remove(job.getStudy().getInstanceUid());
+                            jobs.put(job.getStudy().getInstanceUid(), job);
+                        }
+                    });
+                }
+            }
+            compact();
+            log.info("replayed {} jobs from the journal, {} to resume", jobs.size(), pendingJobs().size());
+        } catch (IOException e) {
+            log.warn("could not load the job journal {}", journalPath, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (scheduler == null) {
+            return;
+        }
+        synchronized (jobs) {
+            closed = true;
+        }
+        flush();
+        scheduler.dispose();
+        closeChannel();
+    }
+
+    public boolean isEnabled() {
+        return qureConfiguration.getJournal().isEnabled();
+    }
+
+    public Optional<QureJob> find(String instanceUid) {
+        synchronized (jobs) {
+            return Optional.ofNullable(jobs.get(instanceUid));
+        }
+    }
+
+    /**
+     * The jobs uploaded but not downloaded yet, the ones only queued were never sent to Qure.
+     */
+    public List<QureJob> pendingJobs() {
+        synchronized (jobs) {
+            return jobs.values().stream()
+                    .filter(job -> job.getState() == QureJobState.UPLOADED || job.getState() == QureJobState.RESULT_READY)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Records the new state of a study, the mono completes once the record is synced to disk. Fails once the journal
+     * is closed.
+     */
+    public Mono<Void> record(QureStudy study, QureJobState state, @Nullable QureResultResponseDto result) {
+        if (!isEnabled() || scheduler == null) {
+            return Mono.empty();
+        }
+        return Mono.defer(() -> {
+            QureJob job = new QureJob(study, state, result);
+            String line;
+            try {
+                line = format(job);
+            } catch (JsonProcessingException e) {
+                log.warn("could not record the state of {}", study.getInstanceUid(), e);
+                return Mono.empty();
+            }
+            CompletableFuture<Void> committed = new CompletableFuture<>();
+            synchronized (jobs) {
+                if (closed) {
+                    return Mono.error(new IllegalStateException("the job journal is closed, "
+                            + study.getInstanceUid() + " cannot be recorded as " + state));
+                }
+                jobs.remove(study.getInstanceUid());
+                jobs.put(study.getInstanceUid(), job);
+                pendingRecords.add(new PendingRecord(line, committed));
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    scheduler.schedule(this::flush, qureConfiguration.getJournal().getCommitDelay().toNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+            return Mono.fromFuture(committed);
+        });
+    }
+
+    /**
+     * Writes the pending records with a single fsync, a failure is logged and the studies go on without being
+     * resumable.
+     */
+    private synchronized void flush() {
+        List<PendingRecord> records;
+        synchronized (jobs) {
+            records = new ArrayList<>(pendingRecords);
+            pendingRecords.clear();
+            flushScheduled = false;
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            StringBuilder lines = new StringBuilder();
+            records.forEach(record -> lines.append(record.getLine()).append('\n'));
+            write(openChannel(), lines.toString());
+            channel.force(false);
+            lineCount += records.size();
+            if (lineCount >= qureConfiguration.getJournal().getCompactionThreshold() && lineCount > 2L * jobsInProgress()) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.warn("could not write the job journal {}", journalPath(), e);
+            closeChannel();
+        } finally {
+            records.forEach(record -> record.getCommitted().complete(null));
+        }
+    }
+
+    /**
+     * Rewrites the journal with the last state of each instance still in progress, the new file replaces the old one
+     * atomically.
+     */
+    private synchronized void compact() throws IOException {
+        List<String> lines = new ArrayList<>();
+        synchronized (jobs) {
+            jobs.values().removeIf(job -> job.getState() == QureJobState.DOWNLOADED);
+            for (QureJob job : jobs.values()) {
+                lines.add(format(job));
+            }
+        }
+        Path journalPath = journalPath();
+        Path tempPath = journalPath.resolveSibling(journalPath.getFileName() + TEMP_SUFFIX);
+        try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(tempChannel, lines.stream().map(line -> line + '\n').collect(Collectors.joining()));
+            tempChannel.force(false);
+        }
+        closeChannel();
+        Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lineCount = lines.size();
+        log.debug("compacted the job journal to {} lines", lineCount);
+    }
+
+    private long jobsInProgress() {
+        synchronized (jobs) {
+            return jobs.values().stream().filter(job -> job.getState() != QureJobState.DOWNLOADED).count();
+        }
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(journalPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("could not close the job journal", e);
+            }
+            channel = null;
+        }
+    }
+
+    private static void write(FileChannel fileChannel, String content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+    }
+
+    private String format(QureJob job) throws JsonProcessingException {
+        QureStudy study = job.getStudy();
+        return String.join(SEPARATOR, job.getState().name(), study.getInstanceUid(),
+                study.getInputPath().toString(), study.getOutputPath().toString(),
+                job.getResult() != null ? objectMapper.writeValueAsString(job.getResult()) : "");
+    }
+
+    private Optional<QureJob> parse(String line) {
+        String[] columns = line.split(SEPARATOR, -1);
+        if (columns.length != 5) {
+            return Optional.empty();
+        }
+        try {
+            QureResultResponseDto result = columns[4].isEmpty()
+                    ? null
+                    : objectMapper.readValue(columns[4], QureResultResponseDto.class);
+            return Optional.of(new QureJob(new QureStudy(Path.of(columns[2]), columns[1], Path.of(columns[3])),
+                    QureJobState.valueOf(columns[0]), result));
+        } catch (IOException | IllegalArgumentException e) {
+            log.debug("skipping the journal line {}", line, e);
+            return Optional.empty();
+        }
+    }
+
+    private Path journalPath() {
+        return Path.of(qureConfiguration.getJournal().getPath());
+    }
+
+    @Value
+    private static class PendingRecord {
+        String line;
+        CompletableFuture<Void> committed;
+    }
+}
@@ -0,0 +1,27 @@
+package com.incepto.quredemo.service.v1;
+
+/**
+ * Steps of the processing of a study recorded in the job journal, in their order.
+ */
+public enum QureJobState {
+
+    /**
+     * The study is about to be uploaded.
+     */
+    QUEUED,
+
+    /**
+     * Qure accepted the study, its result is not known yet.
+     */
+    UPLOADED,
+
+    /**
+     * The result is known, its files are not all downloaded yet.
+     */
+    RESULT_READY,
+
+    /**
+     * Every file of the result is written next to the output path.
+     */
+    DOWNLOADED
+}
@@ -0,0 +1,211 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.client.QureFlightRecorder;
+import com.incepto.quredemo.client.QureMetrics;
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Processes studies as a pipeline of stages: read, upload, result, download and persist. Each stage works on at most
+ * {@code concurrency} studies at a time on its own scheduler, and takes them from a queue of {@code queueSize}
+ * studies handed over by the stage before it. The next studies are then uploaded while the previous ones wait for
+ * their result or are downloaded, and a slow stage fills its queue and holds the stages before it instead of
+ * every study in flight.
+ * <p>
+ * The queue depth, the busy slots and the utilization of the stages are published as {@code qure.pipeline.*}
+ * gauges, and the utilization over a run is logged at its end: the bottleneck is the stage close to 100% whose
+ * queue stays full.
+ */
+@Slf4j
+@Service
+public class QurePipeline {
+
+    private final QureService qureService;
+    private final QureMetrics qureMetrics;
+
+    private final Stage read;
+    private final Stage upload;
+    private final Stage result;
+    private final Stage download;
+    private final Stage persist;
+
+    public QurePipeline(QureService qureService, QureConfiguration qureConfiguration, QureMetrics qureMetrics) {
+        this.qureService = qureService;
+        this.qureMetrics = qureMetrics;
+        QureConfiguration.Pipeline pipeline = qureConfiguration.getPipeline();
+        read = new Stage("read", pipeline.getRead());
+        upload = new Stage("upload", pipeline.getUpload());
+        result = new Stage("result", pipeline.getResult());
+        download = new Stage("download", pipeline.getDownload());
+        persist = new Stage("persist", pipeline.getPersist());
+    }
+
+    @PreDestroy
+    public void close() {
+        stages().forEach(stage -> stage.scheduler.dispose());
+    }
+
+    /**
+     * Processes the studies, one outcome is published per study in the order they complete. A study which fails
+     * skips the next stages, the other studies go on.
+     */
+    public Flux<QureStudyOutcome> process(Flux<QureStudy> studies) {
+        return process(studies, qureService::readJob);
+    }
+
+    /**
+     * Processes studies already uploaded, such as the instances received by the STOW-RS endpoint: they skip the
+     * upload stage and wait for their result.
+     */
+    public Flux<QureStudyOutcome> processUploaded(Flux<QureStudy> studies) {
+        return process(studies, qureService::uploadedJob);
+    }
+
+    private Flux<QureStudyOutcome> process(Flux<QureStudy> studies, Function<QureStudy, Mono<QureJob>> readStep) {
+        return Flux.defer(() -> {
+            long startNanos = System.nanoTime();
+            Map<Stage, Long> startBusyNanos = stages().stream()
+                    .collect(Collectors.toMap(Function.identity(), stage -> stage.busyNanos.get()));
+            Flux<Item> items = studies.map(Item::new);
+            items = read.apply(items, item -> readStep.apply(item.study));
+            items = upload.apply(items, item -> qureService.uploadJob(item.job()));
+            items = result.apply(items, item -> qureService.awaitJobResult(item.job()));
+            items = download.apply(items, item -> qureService.downloadJob(item.job()));
+            items = persist.apply(items, item -> qureService.persistJob(item.job()));
+            return items
+                    .map(this::outcome)
+                    .doOnComplete(() -> logUtilization(System.nanoTime() - startNanos, startBusyNanos));
+        });
+    }
+
+    private QureStudyOutcome outcome(Item item) {
+        Duration duration = Duration.ofNanos(System.nanoTime() - item.startNanos);
+        qureMetrics.recordStudy(duration, item.error == null ? "success" : "error");
+        QureStudy study = item.job == null ? item.study : item.job.getStudy();
+        return new QureStudyOutcome(study, item.error, duration);
+    }
+
+    private void logUtilization(long elapsedNanos, Map<Stage, Long> startBusyNanos) {
+        log.info("pipeline stages utilization: {}", stages().stream()
+                .map(stage -> String.format("%s %.0f%%", stage.name,
+                        100d * (stage.busyNanos.get() - startBusyNanos.get(stage)) / Math.max(elapsedNanos, 1) / stage.concurrency))
+                .collect(Collectors.joining(", ")));
+    }
+
+    private List<Stage> stages() {
+        return List.of(read, upload, result, download, persist);
+    }
+
+    /**
+     * A study going through the stages, with its job once read and the error of the stage it failed in.
+     */
+    private static class Item {
+        private final QureStudy study;
+        private final long startNanos;
+        @Nullable
+        private final QureJob job;
+        @Nullable
+        private final Throwable error;
+
+        Item(QureStudy study) {
+            this(study, System.nanoTime(), null, null);
+        }
+
+        private Item(QureStudy study, long startNanos, @Nullable QureJob job, @Nullable Throwable error) {
+            this.study = study;
+            this.startNanos = startNanos;
+            this.job = job;
+            this.error = error;
+        }
+
+        QureJob job() {
+            if (job == null) {
+                throw new IllegalStateException("the study " + study.getInputPath() + " was not read");
+            }
+            return job;
+        }
+
+        /**
+         * Empty until the read stage reads the SOP Instance UID of the studies which have none.
+         */
+        String instanceUid() {
+            return job == null ? study.getInstanceUid() : job.getStudy().getInstanceUid();
+        }
+
+        Item next(QureJob nextJob) {
+            return new Item(study, startNanos, nextJob, null);
+        }
+
+        Item failed(Throwable e) {
+            return new Item(study, startNanos, job, e);
+        }
+    }
+
+    private class Stage {
+
+        private final String name;
+        private final int concurrency;
+        private final int queueSize;
+        private final Scheduler scheduler;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger busy = new AtomicInteger();
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        Stage(String name, QureConfiguration.Pipeline.Stage settings) {
+            this.name = name;
+            this.concurrency = settings.getConcurrency();
+            this.queueSize = settings.getQueueSize();
+            // one more thread for the hand-over from the queue
+            this.scheduler = Schedulers.newBoundedElastic(concurrency + 1, Schedulers.DEFAULT_BOUNDED_ELASTIC_QUEUESIZE,
+                    "qure-" + name, 60, true);
+            qureMetrics.gaugeStage(name, queued, busy, concurrency);
+        }
+
+        /**
+         * Queues the items, then applies the step to at most concurrency of them at a time: the queue only requests
+         * more items from the stage before it once it has room for them. The failed items go through untouched.
+         */
+        Flux<Item> apply(Flux<Item> items, Function<Item, Mono<QureJob>> step) {
+            return items
+                    .doOnNext(item -> queued.incrementAndGet())
+                    .publishOn(scheduler, queueSize)
+                    .flatMap(item -> {
+                        queued.decrementAndGet();
+                        return item.error != null ? Mono.just(item) : work(item, step);
+                    }, concurrency);
+        }
+
+        private Mono<Item> work(Item item, Function<Item, Mono<QureJob>> step) {
+            return Mono.defer(() -> {
+                busy.incrementAndGet();
+                long startNanos = System.nanoTime();
+                return step.apply(item)
+                        .subscriberContext(QureFlightRecorder.withInstanceUid(item.instanceUid()))
+                        .switchIfEmpty(Mono.error(() -> new IllegalStateException("no result from the " + name + " stage")))
+                        .map(item::next)
+                        .onErrorResume(e -> Mono.just(item.failed(e)))
+                        .doFinally(signal -> {
+                            long nanos = System.nanoTime() - startNanos;
+                            busy.decrementAndGet();
+                            busyNanos.addAndGet(nanos);
+                            qureMetrics.recordStage(name, Duration.ofNanos(nanos));
+                        });
+            }).subscribeOn(scheduler);
+        }
+    }
+}
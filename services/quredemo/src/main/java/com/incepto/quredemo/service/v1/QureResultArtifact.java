@@ -0,0 +1,15 @@
+package com.incepto.quredemo.service.v1;
+
+import lombok.Value;
+
+import java.nio.file.Path;
+
+/**
+ * A file of a result to download and where to write it.
+ */
+@Value
+public class QureResultArtifact {
+    String name;
+    String uri;
+    Path outputPath;
+}
@@ -0,0 +1,118 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.client.QureClient;
+import com.incepto.quredemo.client.QureConnectionException;
+import com.incepto.quredemo.client.QureEvents;
+import com.incepto.quredemo.client.QureMetrics;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Polls Qure until the result of an instance is ready.
+ * <p>
+ * A result which is not successful yet (the 503 / 404 bodies let through by the client) is pending and polled
+ * again with an exponential backoff with jitter, capped by retryRate, until the polling deadline.
+ * The first poll is delayed by the median of the recent completion times so that most results are ready
+ * when it is sent. A result already ready at the first poll may have been ready long before it, its completion time
+ * is recorded as half of the delay so that the delay also shrinks when Qure gets faster.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class QureResultPoller {
+
+    private final QureClient qureClient;
+    private final QureConfiguration qureConfiguration;
+    private final QureMetrics qureMetrics;
+
+    private final Deque<Duration> completionTimes = new ArrayDeque<>();
+
+    public Mono<QureResultResponseDto> awaitResult(String instanceUid) {
+        QureConfiguration.Polling polling = qureConfiguration.getPolling();
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            AtomicInteger attempts = new AtomicInteger();
+            Duration firstPollDelay = firstPollDelay();
+            // only the polls are retried, the pending results are not delayed again by the first poll delay
+            return Mono.delay(firstPollDelay)
+                    .then(Mono.defer(() -> poll(instanceUid, attempts.incrementAndGet()))
+                            .retryWhen(Retry.backoff(Long.MAX_VALUE, polling.getMinBackoff())
+                                    .maxBackoff(qureConfiguration.getRetryRate())
+                                    .jitter(polling.getJitter())
+                                    .filter(ResultPendingException.class::isInstance)))
+                    .timeout(polling.getDeadline())
+                    .onErrorMap(TimeoutException.class, e -> new QureConnectionException(HttpStatus.SERVICE_UNAVAILABLE,
+                            "result of " + instanceUid + " not ready after " + polling.getDeadline()))
+                    .doOnNext(result -> {
+                        Duration completionTime = Duration.ofNanos(System.nanoTime() - startNanos);
+                        qureMetrics.recordResultWait(completionTime);
+                        // the time measured by a first poll is the delay it waited, not when the result got ready
+                        recordCompletion(attempts.get() == 1 ? firstPollDelay.dividedBy(2) : completionTime);
+                    });
+        });
+    }
+
+    private Mono<QureResultResponseDto> poll(String instanceUid, int attempt) {
+        QureEvents.ResultPoll event = new QureEvents.ResultPoll();
+        return qureClient.getResults(instanceUid)
+                .flatMap(result -> result.isSuccess()
+                        ? Mono.just(result)
+                        : Mono.error(new ResultPendingException(result.getMessage())))
+                .switchIfEmpty(Mono.error(() -> new ResultPendingException("empty result")))
+                .doOnSubscribe(subscription -> event.begin())
+                .doOnSuccess(result -> qureMetrics.countPoll("ready"))
+                .doOnError(ResultPendingException.class, e -> qureMetrics.countPoll("pending"))
+                .doOnEach(signal -> {
+                    if (!signal.isOnNext() && event.shouldCommit()) {
+                        event.instanceUid = instanceUid;
+                        event.attempt = attempt;
+                        event.outcome = signal.isOnComplete() ? "ready"
+                                : signal.getThrowable() instanceof ResultPendingException ? "pending" : "error";
+                        event.commit();
+                    }
+                });
+    }
+
+    Duration firstPollDelay() {
+        QureConfiguration.Polling polling = qureConfiguration.getPolling();
+        synchronized (completionTimes) {
+            if (completionTimes.isEmpty()) {
+                return polling.getInitialDelay();
+            }
+            Duration median = completionTimes.stream().sorted().skip(completionTimes.size() / 2).findFirst()
+                    .orElse(polling.getInitialDelay());
+            return median.compareTo(polling.getMinBackoff()) < 0 ? polling.getMinBackoff() : median;
+        }
+    }
+
+    private void recordCompletion(Duration completionTime) {
+        log.debug("result ready after {}", completionTime);
+        synchronized (completionTimes) {
+            completionTimes.addLast(completionTime);
+            while (completionTimes.size() > qureConfiguration.getPolling().getHistorySize()) {
+                completionTimes.removeFirst();
+            }
+        }
+    }
+
+    private static class ResultPendingException extends RuntimeException {
+
+        private static final long serialVersionUID = 2618047465410683375L;
+
+        ResultPendingException(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
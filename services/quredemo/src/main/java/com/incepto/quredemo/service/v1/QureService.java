@@ -2,81 +2,341 @@ package com.incepto.quredemo.service.v1;
 
 
 import com.incepto.quredemo.client.QureClient;
+import com.incepto.quredemo.client.QureEvents;
+import com.incepto.quredemo.client.QureFlightRecorder;
+import com.incepto.quredemo.client.QureMetrics;
+import com.incepto.quredemo.client.QureResultFilesResponseDto;
 import com.incepto.quredemo.client.QureResultResponseDto;
 import com.incepto.quredemo.client.QureSeriesResponseDto;
 import com.incepto.quredemo.config.QureConfiguration;
+import com.incepto.quredemo.config.QureFileType;
+import com.incepto.quredemo.dicom.DicomHeader;
+import com.incepto.quredemo.dicom.DicomHeaderReader;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class QureService {
 
+    private static final String REPORT = "report";
+
     private final QureClient qureClient;
     private final QureConfiguration qureConfiguration;
+    private final QureResultPoller qureResultPoller;
+    private final QureMetrics qureMetrics;
+    private final DicomHeaderReader dicomHeaderReader;
+    private final QureJobJournal qureJobJournal;
 
     public void process() {
-        if(qureConfiguration.getInstanceUid().isEmpty()) {
-            log.info("please define instance uid");
+        Path inputPath = Path.of(qureConfiguration.getInputPath());
+        Optional<String> instanceUid = qureConfiguration.getInstanceUid().isEmpty()
+                ? readInstanceUid(inputPath)
+                : Optional.of(qureConfiguration.getInstanceUid());
+        if (instanceUid.isEmpty()) {
+            log.info("please define instance uid, none found in {}", inputPath);
             return;
         }
 
-        try(ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-
-
-            this.upload(Path.of(qureConfiguration.getInputPath()), qureConfiguration.isFixApplied())
-                    .delayElement(Duration.ofSeconds(5))
-                    .flatMap(uploadDto -> getResult(qureConfiguration.getInstanceUid()))
-                    .flatMapMany(resultDto -> download(resultDto.getFiles().getReports().getDcm()))
-                    .collectList().map((List<DataBuffer> dataBuffers) -> {
-                dataBuffers.forEach(dataBuffer ->  {
-                    try {
-                        baos.writeBytes(dataBuffer.asInputStream().readAllBytes());
-                    } catch (IOException e) {
-                        log.error("an error occured", e);
-                    }
-                });
-                return baos;
-            }).then(Mono.defer(() -> {
-                try (OutputStream fos = Files.newOutputStream(Path.of(qureConfiguration.getOutputPath()))){
-                    fos.write(baos.toByteArray());
-                } catch (IOException e) {
-                    log.error("an error occured", e);
-                }
-                return Mono.just(true);
-            }))
-                    .doOnError(Exception.class, this::doOnError)
-                    .block();
+        QureStudy study = new QureStudy(inputPath, instanceUid.get(), Path.of(qureConfiguration.getOutputPath()));
+        this.process(study)
+                .doOnError(Exception.class, this::doOnError)
+                .block();
+    }
+
+    /**
+     * Uploads the study, waits for its result and downloads the report to the study output path,
+     * along with the configured result types.
+     */
+    public Mono<Path> process(QureStudy study) {
+        return timed(readJob(study)
+                .flatMap(readJob -> uploadJob(readJob)
+                        .flatMap(this::awaitJobResult)
+                        .flatMap(this::downloadJob)
+                        .flatMap(this::persistJob)
+                        .subscriberContext(QureFlightRecorder.withInstanceUid(readJob.getStudy().getInstanceUid())))
+                .map(job -> job.getStudy().getOutputPath()));
+    }
+
+    private Mono<Path> timed(Mono<Path> processing) {
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            return processing
+                    .doOnSuccess(outputPath -> qureMetrics.recordStudy(Duration.ofNanos(System.nanoTime() - startNanos), "success"))
+                    .doOnError(e -> qureMetrics.recordStudy(Duration.ofNanos(System.nanoTime() - startNanos), "error"));
+        });
+    }
+
+    /**
+     * First step of a study: reads its SOP Instance UID when it has none, then its last state in the job journal so
+     * that the next steps go on from it. The header is read on the calling thread.
+     */
+    Mono<QureJob> readJob(QureStudy study) {
+        return Mono.fromCallable(() -> {
+            QureStudy identifiedStudy = study.getInstanceUid().isEmpty()
+                    ? new QureStudy(study.getInputPath(), defaultInstanceUid(study.getInputPath()), study.getOutputPath())
+                    : study;
+            Optional<QureJob> job = qureJobJournal.find(identifiedStudy.getInstanceUid());
+            QureJobState state = job.map(QureJob::getState).orElse(QureJobState.QUEUED);
+            QureResultResponseDto result = job.map(QureJob::getResult).orElse(null);
+            if (state != QureJobState.QUEUED) {
+                log.info("resuming {} from the {} state", identifiedStudy.getInstanceUid(), state);
+            }
+            if (state == QureJobState.UPLOADED) {
+                return new QureJob(identifiedStudy, state, null);
+            } else if (state == QureJobState.QUEUED || result == null) {
+                return new QureJob(identifiedStudy, QureJobState.QUEUED, null);
+            } else if (state == QureJobState.DOWNLOADED && !Files.exists(identifiedStudy.getOutputPath())) {
+                return new QureJob(identifiedStudy, QureJobState.RESULT_READY, result);
+            }
+            return new QureJob(identifiedStudy, state, result);
+        });
+    }
+
+    /**
+     * The job of a study already uploaded, such as an instance received by the STOW-RS endpoint, recorded in the
+     * journal to be resumed from its result.
+     */
+    Mono<QureJob> uploadedJob(QureStudy study) {
+        return qureJobJournal.record(study, QureJobState.UPLOADED, null)
+                .thenReturn(new QureJob(study, QureJobState.UPLOADED, null));
+    }
+
+    /**
+     * Uploads a queued study, an instance already processed is neither uploaded nor polled again. Completes empty
+     * when the connection is closed before the response.
+     */
+    Mono<QureJob> uploadJob(QureJob job) {
+        if (job.getState() != QureJobState.QUEUED) {
+            return Mono.just(job);
+        }
+        QureStudy study = job.getStudy();
+        return qureJobJournal.record(study, QureJobState.QUEUED, null)
+                .then(qureClient.getCachedResults(study.getInstanceUid()))
+                .map(resultDto -> new QureJob(study, QureJobState.RESULT_READY, resultDto))
+                .switchIfEmpty(Mono.defer(() -> this.upload(study.getInputPath(), study.getInstanceUid(), qureConfiguration.isFixApplied())
+                        .flatMap(uploadDto -> qureJobJournal.record(study, QureJobState.UPLOADED, null)
+                                .thenReturn(new QureJob(study, QureJobState.UPLOADED, null)))));
+    }
+
+    Mono<QureJob> awaitJobResult(QureJob job) {
+        if (job.getState() != QureJobState.UPLOADED) {
+            return Mono.just(job);
+        }
+        return qureResultPoller.awaitResult(job.getStudy().getInstanceUid())
+                .flatMap(resultDto -> qureJobJournal.record(job.getStudy(), QureJobState.RESULT_READY, resultDto)
+                        .thenReturn(new QureJob(job.getStudy(), QureJobState.RESULT_READY, resultDto)));
+    }
+
+    Mono<QureJob> downloadJob(QureJob job) {
+        QureResultResponseDto result = job.getResult();
+        if (job.getState() != QureJobState.RESULT_READY || result == null) {
+            return Mono.just(job);
+        }
+        return downloadResult(job.getStudy(), result)
+                .map(outputPath -> new QureJob(job.getStudy(), QureJobState.DOWNLOADED, result));
+    }
+
+    /**
+     * Last step of a study: records it as downloaded, the mono completes once the record is synced.
+     */
+    Mono<QureJob> persistJob(QureJob job) {
+        return qureJobJournal.record(job.getStudy(), QureJobState.DOWNLOADED, job.getResult())
+                .thenReturn(job);
+    }
+
+    public Mono<QureSeriesResponseDto> upload(Path path, String instanceUid, boolean withFix) {
+        return qureClient.upload(path, instanceUid, withFix);
+    }
+
+    /**
+     * Reads the SOP Instance UID from the header of a DICOM file, empty when the file has none or is not DICOM.
+     */
+    public Optional<String> readInstanceUid(Path inputPath) {
+        QureEvents.FileRead event = new QureEvents.FileRead();
+        event.begin();
+        try {
+            DicomHeader header = dicomHeaderReader.read(inputPath);
+            event.instanceUid = header.getSopInstanceUid();
+            log.debug("{}: {} instance {} of study {} ({})", inputPath, header.getModality(),
+                    header.getSopInstanceUid(), header.getStudyInstanceUid(), header.getTransferSyntaxUid());
+            return header.getSopInstanceUid().isEmpty() ? Optional.empty() : Optional.of(header.getSopInstanceUid());
         } catch (IOException e) {
-            log.error("an error occured", e);
+            log.warn("could not read the DICOM header of {}", inputPath, e);
+            return Optional.empty();
+        } finally {
+            if (event.shouldCommit()) {
+                event.path = inputPath.toString();
+                event.commit();
+            }
         }
     }
 
-    public Mono<QureSeriesResponseDto> upload(Path path, boolean withFix) {
-        return qureClient.upload(path, "filename", withFix);
+    /**
+     * The SOP Instance UID of the DICOM header, files without one are expected to be named after it
+     * as they usually are when exported from a PACS.
+     */
+    public String defaultInstanceUid(Path inputPath) {
+        Optional<String> instanceUid = readInstanceUid(inputPath);
+        if (instanceUid.isPresent()) {
+            return instanceUid.get();
+        }
+        String fileName = inputPath.getFileName().toString();
+        return fileName.endsWith(".dcm") ? fileName.substring(0, fileName.length() - 4) : fileName;
+    }
+
+    /**
+     * Downloads the report and the configured result types at the same time, each one to its own file next to
+     * the study output path, so that a result takes as long as its slowest file.
+     */
+    public Mono<Path> downloadResult(QureStudy study, QureResultResponseDto result) {
+        return Flux.fromIterable(listArtifacts(study.getOutputPath(), result.getFiles()))
+                .flatMap(artifact -> download(study.getInstanceUid(), artifact), qureConfiguration.getDownload().getConcurrency())
+                .then(Mono.just(study.getOutputPath()));
+    }
+
+    private Mono<Path> download(String instanceUid, QureResultArtifact artifact) {
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            QureEvents.Download event = new QureEvents.Download();
+            event.begin();
+            return download(instanceUid, artifact.getUri(), artifact.getOutputPath())
+                    .doOnSuccess(outputPath -> {
+                        Duration duration = Duration.ofNanos(System.nanoTime() - startNanos);
+                        qureMetrics.recordDownload(artifact.getName(), duration);
+                        log.info("downloaded the {} of {} in {} ms", artifact.getName(), instanceUid, duration.toMillis());
+                        if (event.shouldCommit()) {
+                            event.instanceUid = instanceUid;
+                            event.artifact = artifact.getName();
+                            event.bytes = outputPath.toFile().length();
+                            event.commit();
+                        }
+                    });
+        });
+    }
+
+    /**
+     * The report is written to the output path, the other files are named after it:
+     * {@code name.pdf}, {@code name-gsps.dcm}, {@code name-gt-1.dcm}...
+     */
+    private List<QureResultArtifact> listArtifacts(Path outputPath, QureResultFilesResponseDto files) {
+        String fileName = outputPath.getFileName().toString();
+        int extensionIndex = fileName.lastIndexOf('.');
+        String baseName = extensionIndex > 0 ? fileName.substring(0, extensionIndex) : fileName;
+
+        List<QureResultArtifact> artifacts = new ArrayList<>();
+        artifacts.add(new QureResultArtifact(REPORT, files.getReports().getDcm(), outputPath));
+        for (QureFileType resultType : qureConfiguration.getResultTypes()) {
+            String name = resultType.name().toLowerCase(Locale.ROOT);
+            List<String> uris = urisOf(resultType, files);
+            for (int i = 0; i < uris.size(); i++) {
+                if (uris.get(i).isEmpty()) {
+                    log.debug("no {} in the result", name);
+                    continue;
+                }
+                String suffix = uris.size() > 1 ? "-" + (i + 1) : "";
+                String artifactFileName = resultType == QureFileType.PDF
+                        ? baseName + suffix + ".pdf"
+                        : baseName + "-" + name + suffix + ".dcm";
+                artifacts.add(new QureResultArtifact(name, uris.get(i), outputPath.resolveSibling(artifactFileName)));
+            }
+        }
+        return artifacts;
+    }
+
+    private static List<String> urisOf(QureFileType resultType, QureResultFilesResponseDto files) {
+        switch (resultType) {
+            case GSPS:
+                return List.of(files.getGsps());
+            case PDF:
+                return List.of(files.getReports().getPdf());
+            case OVERLAY:
+                return List.of(files.getSc());
+            case SR:
+                return List.of(files.getReports().getSr());
+            case GT:
+                return files.getGt();
+            default:
+                throw new IllegalArgumentException("unknown result type " + resultType);
+        }
     }
 
-    public Flux<DataBuffer> download(String fileUri) {
-        return qureClient.downloadObject(fileUri);
+    public Flux<DataBuffer> download(String instanceUid, String fileUri) {
+        return qureClient.downloadObject(instanceUid, fileUri);
+    }
+
+    /**
+     * Downloads an object to a partial file next to the output path, then moves it to the output path so that
+     * a partial download never ends up as the output file. The partial file is kept when the download fails and
+     * resumed by the next download of the same object, an object already cached is copied from the cache.
+     */
+    public Mono<Path> download(String instanceUid, String fileUri, Path outputPath) {
+        return Mono.defer(() -> {
+            if (qureClient.isObjectCached(instanceUid, fileUri)) {
+                return copyToOutput(download(instanceUid, fileUri), outputPath);
+            }
+            return qureClient.downloadObject(fileUri, partialPath(outputPath, fileUri))
+                    .flatMap(partialPath -> Mono.fromCallable(() -> Files.move(partialPath, outputPath,
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)))
+                    .flatMap(path -> qureClient.cacheObject(instanceUid, fileUri, path).thenReturn(path));
+        });
+    }
+
+    /**
+     * Writes the buffers to a temporary file as they arrive, releasing them once written, then moves it to the output path.
+     * The temporary file is deleted when the copy fails or is cancelled, once moved there is nothing left to delete.
+     */
+    private Mono<Path> copyToOutput(Flux<DataBuffer> content, Path outputPath) {
+        return Mono.fromCallable(() -> createTempFile(outputPath))
+                .flatMap(tempPath -> DataBufferUtils.write(content, tempPath, StandardOpenOption.WRITE)
+                        .then(Mono.fromCallable(() -> Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE)))
+                        .doFinally(signal -> deleteTempFile(tempPath)));
     }
 
     public Mono<QureResultResponseDto> getResult(String instanceUid) {
         return qureClient.getResults(instanceUid);
     }
 
+    private Path createTempFile(Path outputPath) throws IOException {
+        Path directory = outputPath.toAbsolutePath().getParent();
+        return Files.createTempFile(directory, outputPath.getFileName().toString(), ".part");
+    }
+
+    /**
+     * The partial file name depends on the object so that a resumed download never appends another object.
+     */
+    private static Path partialPath(Path outputPath, String fileUri) {
+        String uriDigest = DigestUtils.md5DigestAsHex(fileUri.getBytes(StandardCharsets.UTF_8)).substring(0, 8);
+        return outputPath.toAbsolutePath().resolveSibling(outputPath.getFileName() + "." + uriDigest + ".part");
+    }
+
+    private void deleteTempFile(Path tempPath) {
+        try {
+            Files.deleteIfExists(tempPath);
+        } catch (IOException e) {
+            log.warn("could not delete temporary file {}", tempPath, e);
+        }
+    }
+
     private void doOnError(Exception e) {
         log.error("An error occured: ", e);
     }
@@ -0,0 +1,15 @@
+package com.incepto.quredemo.service.v1;
+
+import lombok.Value;
+
+import java.nio.file.Path;
+
+/**
+ * A DICOM file to send to Qure and where to write its report.
+ */
+@Value
+public class QureStudy {
+    Path inputPath;
+    String instanceUid;
+    Path outputPath;
+}
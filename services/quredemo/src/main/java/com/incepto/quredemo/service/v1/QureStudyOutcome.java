@@ -0,0 +1,21 @@
+package com.incepto.quredemo.service.v1;
+
+import lombok.Value;
+import org.springframework.lang.Nullable;
+
+import java.time.Duration;
+
+/**
+ * End of the processing of a study by the pipeline, with the error which stopped it when it failed.
+ */
+@Value
+public class QureStudyOutcome {
+    QureStudy study;
+    @Nullable
+    Throwable error;
+    Duration duration;
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
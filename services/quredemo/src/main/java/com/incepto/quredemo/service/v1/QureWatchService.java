@@ -0,0 +1,205 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.UnicastProcessor;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Daemon mode: watches the input directories and processes each new file once it is fully written,
+ * the Spring context, the warmed up JIT and the pooled connections being shared by every study.
+ * <p>
+ * The directories are scanned on file system events, and every {@code pollInterval} for the file systems without
+ * events (network shares). A file is submitted once its size and modification time did not change for
+ * {@code stableTime}, and submitted again only if it changes. The submitted files go through the {@link QurePipeline},
+ * each stage bounding the studies in flight. Its report is written to the output directory with its name, then the
+ * file is moved to the processed or failed directory when they are set.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class QureWatchService {
+
+    private static final Set<String> TEMPORARY_SUFFIXES = Set.of(".part", ".tmp", ".filepart");
+
+    private final QurePipeline qurePipeline;
+    private final QureConfiguration qureConfiguration;
+
+    private final Map<Path, FileState> files = new HashMap<>();
+    private volatile boolean running;
+
+    /**
+     * Processes the files of the input directories until {@link #stop()} is called.
+     */
+    public void run() throws IOException {
+        QureConfiguration.Watch watch = qureConfiguration.getWatch();
+        List<Path> inputDirectories = new ArrayList<>();
+        for (String inputDirectory : watch.getInputDirectories()) {
+            inputDirectories.add(Files.createDirectories(Path.of(inputDirectory)));
+        }
+        Path outputDirectory = Files.createDirectories(Path.of(watch.getOutputDirectory()));
+
+        UnicastProcessor<Path> inbox = UnicastProcessor.create();
+        FluxSink<Path> submissions = inbox.sink();
+        Disposable pipeline = qurePipeline.process(inbox.map(inputPath -> study(inputPath, outputDirectory)))
+                .subscribe(this::processed);
+        running = true;
+        log.info("watching {}", inputDirectories);
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            for (Path inputDirectory : inputDirectories) {
+                register(watchService, inputDirectory);
+            }
+            while (running) {
+                scan(inputDirectories).forEach(submissions::next);
+                awaitChanges(watchService);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+            submissions.complete();
+            pipeline.dispose();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+    }
+
+    private void register(WatchService watchService, Path inputDirectory) {
+        try {
+            inputDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.info("no file system events for {}, it is only polled", inputDirectory);
+        }
+    }
+
+    /**
+     * Waits for an event, or for the next poll; while files are being written they are checked again
+     * once they may have become stable.
+     */
+    private void awaitChanges(WatchService watchService) throws InterruptedException {
+        QureConfiguration.Watch watch = qureConfiguration.getWatch();
+        Duration timeout = files.values().stream().anyMatch(state -> !state.submitted)
+                && watch.getStableTime().compareTo(watch.getPollInterval()) < 0
+                ? watch.getStableTime()
+                : watch.getPollInterval();
+        WatchKey key = watchService.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        while (key != null) {
+            key.pollEvents();
+            key.reset();
+            key = watchService.poll();
+        }
+    }
+
+    /**
+     * Lists the files of the input directories and returns the ones stable since the last scan.
+     */
+    List<Path> scan(List<Path> inputDirectories) {
+        long now = System.nanoTime();
+        Set<Path> present = new HashSet<>();
+        List<Path> stableFiles = new ArrayList<>();
+        for (Path inputDirectory : inputDirectories) {
+            List<Path> candidates;
+            try (Stream<Path> paths = Files.list(inputDirectory)) {
+                candidates = paths.filter(QureWatchService::isCandidate).sorted().collect(Collectors.toList());
+            } catch (IOException e) {
+                log.warn("could not list {}", inputDirectory, e);
+                continue;
+            }
+            for (Path path : candidates) {
+                try {
+                    long size = Files.size(path);
+                    long modified = Files.getLastModifiedTime(path).toMillis();
+                    present.add(path);
+                    FileState state = files.get(path);
+                    if (state == null || state.size != size || state.modified != modified) {
+                        files.put(path, new FileState(size, modified, now));
+                    } else if (!state.submitted
+                            && now - state.unchangedSince >= qureConfiguration.getWatch().getStableTime().toNanos()) {
+                        state.submitted = true;
+                        stableFiles.add(path);
+                    }
+                } catch (IOException e) {
+                    // moved or deleted since it was listed
+                    log.debug("could not read {}", path, e);
+                }
+            }
+        }
+        files.keySet().retainAll(present);
+        return stableFiles;
+    }
+
+    private QureStudy study(Path inputPath, Path outputDirectory) {
+        log.info("processing {}", inputPath);
+        // the SOP Instance UID is read by the read stage of the pipeline
+        return new QureStudy(inputPath, "", outputDirectory.resolve(inputPath.getFileName()));
+    }
+
+    private void processed(QureStudyOutcome outcome) {
+        Path inputPath = outcome.getStudy().getInputPath();
+        if (outcome.isSuccess()) {
+            log.info("{} processed, report written to {}", inputPath, outcome.getStudy().getOutputPath());
+            moveTo(inputPath, qureConfiguration.getWatch().getProcessedDirectory());
+        } else {
+            log.error("study {} failed", inputPath, outcome.getError());
+            moveTo(inputPath, qureConfiguration.getWatch().getFailedDirectory());
+        }
+    }
+
+    private void moveTo(Path inputPath, String directory) {
+        if (directory.isEmpty()) {
+            return;
+        }
+        try {
+            Path target = Files.createDirectories(Path.of(directory)).resolve(inputPath.getFileName());
+            Files.move(inputPath, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("could not move {} to {}", inputPath, directory, e);
+        }
+    }
+
+    private static boolean isCandidate(Path path) {
+        String fileName = path.getFileName().toString();
+        return Files.isRegularFile(path)
+                && !fileName.startsWith(".")
+                && TEMPORARY_SUFFIXES.stream().noneMatch(fileName::endsWith);
+    }
+
+    private static class FileState {
+        private final long size;
+        private final long modified;
+        private final long unchangedSince;
+        private boolean submitted;
+
+        FileState(long size, long modified, long unchangedSince) {
+            this.size = size;
+            this.modified = modified;
+            this.unchangedSince = unchangedSince;
+        }
+    }
+}
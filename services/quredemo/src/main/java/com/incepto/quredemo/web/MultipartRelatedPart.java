@@ -0,0 +1,22 @@
+package com.incepto.quredemo.web;
+
+import lombok.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import reactor.core.publisher.Flux;
+
+/**
+ * A part of a multipart/related body being received.
+ */
+@Value
+public class MultipartRelatedPart {
+    HttpHeaders headers;
+    /**
+     * The first bytes of the content, which are also published by the content.
+     */
+    byte[] head;
+    /**
+     * The whole content as it is received, it can only be read once.
+     */
+    Flux<DataBuffer> content;
+}
@@ -0,0 +1,298 @@
+package com.incepto.quredemo.web;
+
+import org.reactivestreams.Subscription;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.lang.Nullable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Splits a multipart/related body into its parts as it is received, a part is never held in memory as a whole.
+ * <p>
+ * The content of a part is published as the body chunks arrive, only the last bytes of a chunk which may be the
+ * start of the next boundary are kept until the next chunk. The part is handed to the part handler once its first
+ * headSize bytes, or the whole part when it is smaller, are received so that the handler can read its header.
+ * The parts are handled one after the other: the next part is read once the content of the current one is consumed.
+ * The body chunks are copied to heap buffers and released as soon as they are read.
+ */
+public class MultipartRelatedReader {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] DASHES = {'-', '-'};
+
+    /** Tokens read ahead of the part being handled. */
+    private static final int PREFETCH = 4;
+
+    private static final DataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private final int maxHeaderSize;
+    private final int headSize;
+
+    public MultipartRelatedReader(int maxHeaderSize, int headSize) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.headSize = headSize;
+    }
+
+    /**
+     * Reads the parts of the body, each one is handed to the part handler.
+     */
+    public <T> Flux<T> read(Flux<DataBuffer> body, String boundary,
+                            Function<MultipartRelatedPart, Mono<T>> partHandler) {
+        return Flux.defer(() -> {
+            Tokenizer tokenizer = new Tokenizer(boundary.getBytes(StandardCharsets.US_ASCII));
+            return body.concatMapIterable(tokenizer::tokens)
+                    .concatWith(Mono.defer(tokenizer::complete));
+        })
+                .windowUntil(PartHeaders.class::isInstance, true, PREFETCH)
+                .concatMap(tokens -> tokens.switchOnFirst((first, partTokens) -> {
+                    if (!(first.get() instanceof PartHeaders)) {
+                        // the window opened before the first part
+                        return partTokens.thenMany(Flux.empty());
+                    }
+                    PartHeaders partHeaders = (PartHeaders) first.get();
+                    PartBody partBody = new PartBody(partTokens.skip(1).map(token -> ((PartContent) token).buffer));
+                    Flux<DataBuffer> content = partHeaders.head.length == 0
+                            ? partBody.content()
+                            : Flux.concat(Mono.fromSupplier(() -> BUFFER_FACTORY.wrap(partHeaders.head)), partBody.content());
+                    // the window must be read to its end, a cancelled window stops the windows which follow it
+                    return Flux.concat(
+                            partHandler.apply(new MultipartRelatedPart(partHeaders.headers, partHeaders.head, content)),
+                            partBody.drained().then(Mono.empty()));
+                }));
+    }
+
+    private enum State {
+        PREAMBLE, BOUNDARY, HEADERS, CONTENT, EPILOGUE
+    }
+
+    private static class PartHeaders {
+        private final HttpHeaders headers;
+        private final byte[] head;
+
+        PartHeaders(HttpHeaders headers, byte[] head) {
+            this.headers = headers;
+            this.head = head;
+        }
+    }
+
+    private static class PartContent {
+        private final DataBuffer buffer;
+
+        PartContent(DataBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Content of a part handed to the part handler. A handler which cancels the content or does not read it does not
+     * stop the reading of the body: the rest of the part is read and dropped.
+     */
+    private static class PartBody {
+
+        private final Flux<DataBuffer> buffers;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+        private final MonoProcessor<Void> done = MonoProcessor.create();
+
+        PartBody(Flux<DataBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        Flux<DataBuffer> content() {
+            return Flux.create(sink -> {
+                if (!subscribed.compareAndSet(false, true)) {
+                    sink.error(new IllegalStateException("The content of a part can only be read once"));
+                    return;
+                }
+                buffers.subscribe(new BaseSubscriber<DataBuffer>() {
+                    @Override
+                    protected void hookOnSubscribe(Subscription subscription) {
+                        sink.onRequest(this::request);
+                        sink.onCancel(() -> request(Long.MAX_VALUE));
+                    }
+
+                    @Override
+                    protected void hookOnNext(DataBuffer buffer) {
+                        if (sink.isCancelled()) {
+                            DataBufferUtils.release(buffer);
+                        } else {
+                            sink.next(buffer);
+                        }
+                    }
+
+                    @Override
+                    protected void hookOnComplete() {
+                        done.onComplete();
+                        sink.complete();
+                    }
+
+                    @Override
+                    protected void hookOnError(Throwable throwable) {
+                        // the error of the body is also published by the parts
+                        done.onComplete();
+                        sink.error(throwable);
+                    }
+                });
+            });
+        }
+
+        /**
+         * Completes once the part has been read to its end.
+         */
+        Mono<Void> drained() {
+            return Mono.defer(() -> subscribed.compareAndSet(false, true)
+                    ? buffers.doOnNext(DataBufferUtils::release).then()
+                    : done);
+        }
+    }
+
+    /**
+     * Turns the body chunks into the headers and the content chunks of the parts.
+     */
+    private class Tokenizer {
+
+        /** The CRLF before the first boundary is part of its delimiter but is missing at the start of the body. */
+        private final byte[] delimiter;
+        private State state = State.PREAMBLE;
+        private byte[] pending = CRLF;
+        /** Headers of the current part, sent with its head once headSize bytes of content are received. */
+        @Nullable
+        private HttpHeaders headers;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+        Tokenizer(byte[] boundary) {
+            delimiter = concat(concat(CRLF, DASHES), boundary);
+        }
+
+        List<Object> tokens(DataBuffer buffer) {
+            byte[] chunk = new byte[buffer.readableByteCount()];
+            buffer.read(chunk);
+            DataBufferUtils.release(buffer);
+            byte[] data = concat(pending, chunk);
+            pending = new byte[0];
+            List<Object> tokens = new ArrayList<>();
+            int position = 0;
+            while (position < data.length && state != State.EPILOGUE) {
+                if (state == State.PREAMBLE || state == State.CONTENT) {
+                    int index = indexOf(data, delimiter, position);
+                    if (index < 0) {
+                        int end = Math.max(position, data.length - delimiter.length + 1);
+                        addContent(tokens, data, position, end);
+                        pending = Arrays.copyOfRange(data, end, data.length);
+                        return tokens;
+                    }
+                    addContent(tokens, data, position, index);
+                    endContent(tokens);
+                    position = index + delimiter.length;
+                    state = State.BOUNDARY;
+                } else if (state == State.BOUNDARY) {
+                    if (data.length - position < DASHES.length) {
+                        break;
+                    }
+                    state = data[position] == '-' && data[position + 1] == '-' ? State.EPILOGUE : State.HEADERS;
+                } else {
+                    int index = indexOf(data, HEADERS_END, position);
+                    if (index < 0) {
+                        if (data.length - position > maxHeaderSize) {
+                            throw new DecodingException("Part headers larger than " + maxHeaderSize + " bytes");
+                        }
+                        break;
+                    }
+                    headers = parseHeaders(new String(data, position, index - position, StandardCharsets.UTF_8));
+                    position = index + HEADERS_END.length;
+                    state = State.CONTENT;
+                }
+            }
+            if (state != State.EPILOGUE) {
+                pending = Arrays.copyOfRange(data, position, data.length);
+            }
+            return tokens;
+        }
+
+        Mono<Object> complete() {
+            return state == State.EPILOGUE
+                    ? Mono.empty()
+                    : Mono.error(new DecodingException("Multipart body ended before its closing boundary"));
+        }
+
+        private void addContent(List<Object> tokens, byte[] data, int from, int to) {
+            if (state != State.CONTENT || from == to) {
+                return;
+            }
+            if (headers == null) {
+                tokens.add(new PartContent(BUFFER_FACTORY.wrap(ByteBuffer.wrap(data, from, to - from))));
+                return;
+            }
+            head.write(data, from, to - from);
+            if (head.size() >= headSize) {
+                sendHead(tokens);
+            }
+        }
+
+        private void endContent(List<Object> tokens) {
+            if (headers != null) {
+                sendHead(tokens);
+            }
+        }
+
+        private void sendHead(List<Object> tokens) {
+            tokens.add(new PartHeaders(Objects.requireNonNull(headers), head.toByteArray()));
+            head.reset();
+            headers = null;
+        }
+    }
+
+    /**
+     * The header block starts with the end of the boundary line, which may hold transport padding.
+     */
+    private static HttpHeaders parseHeaders(String block) {
+        HttpHeaders headers = new HttpHeaders();
+        for (String line : block.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static int indexOf(byte[] data, byte[] target, int from) {
+        int last = data.length - target.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        if (first.length == 0) {
+            return second;
+        }
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
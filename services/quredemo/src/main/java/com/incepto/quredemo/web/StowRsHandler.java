@@ -0,0 +1,238 @@
+package com.incepto.quredemo.web;
+
+import com.incepto.quredemo.client.DicomMultipartRelatedHttpMessageWriter;
+import com.incepto.quredemo.client.QureClient;
+import com.incepto.quredemo.client.QureConnectionException;
+import com.incepto.quredemo.client.QureFlightRecorder;
+import com.incepto.quredemo.config.QureConfiguration;
+import com.incepto.quredemo.dicom.DicomHeaderReader;
+import com.incepto.quredemo.service.v1.QurePipeline;
+import com.incepto.quredemo.service.v1.QureStudy;
+import com.incepto.quredemo.service.v1.QureStudyOutcome;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.Disposable;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DICOMweb STOW-RS endpoint: the instances of a multipart/related request are forwarded to Qure one part at a time,
+ * as they are received, then their reports are downloaded to the stow output directory in the background by the
+ * {@link QurePipeline}, the forwarded instances skipping its upload stage.
+ * <p>
+ * The response lists the forwarded instances in the ReferencedSOPSequence and the others in the FailedSOPSequence,
+ * its status is 200 when every instance was forwarded, 202 when some were and 409 when none was.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "incepto.qure.stow", name = "enabled", havingValue = "true")
+public class StowRsHandler {
+
+    static final MediaType MULTIPART_RELATED = new MediaType("multipart", "related");
+    static final MediaType DICOM = new MediaType("application", "dicom");
+    static final MediaType DICOM_JSON = new MediaType("application", "dicom+json");
+
+    private static final String FAILURE_REASON = "00081197";
+    private static final String FAILED_SOP_SEQUENCE = "00081198";
+    private static final String REFERENCED_SOP_SEQUENCE = "00081199";
+    private static final String REFERENCED_SOP_INSTANCE_UID = "00081155";
+
+    /** Failure reasons of PS3.18: the part is not a DICOM instance, the instance could not be sent to Qure. */
+    static final int CANNOT_UNDERSTAND = 0xC000;
+    static final int PROCESSING_FAILURE = 0x0110;
+
+    /** Input path of the received instances in the job journal, they have no file. */
+    private static final Path RECEIVED_PATH = Path.of("stow-rs");
+
+    private final QureClient qureClient;
+    private final QurePipeline qurePipeline;
+    private final QureConfiguration qureConfiguration;
+    private final DicomHeaderReader dicomHeaderReader;
+    private final MultipartRelatedReader multipartRelatedReader;
+    @Nullable
+    private FluxSink<QureStudy> received;
+    @Nullable
+    private Disposable processing;
+
+    public StowRsHandler(QureClient qureClient, QurePipeline qurePipeline, QureConfiguration qureConfiguration,
+                         DicomHeaderReader dicomHeaderReader) {
+        this.qureClient = qureClient;
+        this.qurePipeline = qurePipeline;
+        this.qureConfiguration = qureConfiguration;
+        this.dicomHeaderReader = dicomHeaderReader;
+        this.multipartRelatedReader = new MultipartRelatedReader(qureConfiguration.getStow().getMaxPartHeaderSize(),
+                DicomMultipartRelatedHttpMessageWriter.DEFAULT_FILE_CHUNK_SIZE);
+    }
+
+    /**
+     * Starts the background processing of the received instances.
+     */
+    @PostConstruct
+    public void start() {
+        UnicastProcessor<QureStudy> inbox = UnicastProcessor.create();
+        received = inbox.sink();
+        processing = qurePipeline.processUploaded(inbox).subscribe(this::processed);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (received != null) {
+            received.complete();
+        }
+        if (processing != null) {
+            processing.dispose();
+        }
+    }
+
+    public Mono<ServerResponse> store(ServerRequest request) {
+        MediaType contentType = request.headers().contentType().orElse(MediaType.APPLICATION_OCTET_STREAM);
+        String boundary = unquote(contentType.getParameter("boundary"));
+        String type = unquote(contentType.getParameter("type"));
+        if (!MULTIPART_RELATED.equalsTypeAndSubtype(contentType) || boundary.isEmpty()
+                || (!type.isEmpty() && !DICOM.toString().equalsIgnoreCase(type))) {
+            return ServerResponse.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build();
+        }
+        return multipartRelatedReader.read(request.body(BodyExtractors.toDataBuffers()), boundary, this::storePart)
+                .collectList()
+                .flatMap(this::respond)
+                .onErrorResume(DecodingException.class, e -> {
+                    log.warn("could not read a STOW-RS request: {}", e.getMessage());
+                    return ServerResponse.badRequest().build();
+                });
+    }
+
+    private Mono<StoredInstance> storePart(MultipartRelatedPart part) {
+        String instanceUid = isDicom(part.getHeaders()) ? readInstanceUid(part.getHead()) : "";
+        if (instanceUid.isEmpty()) {
+            return Mono.just(new StoredInstance("", CANNOT_UNDERSTAND));
+        }
+        return qureClient.upload(instanceUid, part.getContent(), qureConfiguration.isFixApplied())
+                .subscriberContext(QureFlightRecorder.withInstanceUid(instanceUid))
+                .map(response -> new StoredInstance(instanceUid, 0))
+                .doOnNext(stored -> processInBackground(instanceUid))
+                // a connection closed before the response completes the upload without a response
+                .switchIfEmpty(Mono.error(() -> new QureConnectionException(HttpStatus.BAD_GATEWAY, "no response")))
+                .onErrorResume(e -> {
+                    log.warn("could not send the received instance {} to Qure", instanceUid, e);
+                    return Mono.just(new StoredInstance(instanceUid, PROCESSING_FAILURE));
+                });
+    }
+
+    private boolean isDicom(HttpHeaders headers) {
+        try {
+            MediaType partType = headers.getContentType();
+            return partType == null || DICOM.equalsTypeAndSubtype(partType);
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The SOP Instance UID is read from the head of the part, which holds the beginning of the instance.
+     */
+    private String readInstanceUid(byte[] head) {
+        try {
+            return dicomHeaderReader.read(new ByteArrayInputStream(head)).getSopInstanceUid();
+        } catch (IOException e) {
+            log.debug("could not read the header of a received instance", e);
+            return "";
+        }
+    }
+
+    private void processInBackground(String instanceUid) {
+        Path outputDirectory = Path.of(qureConfiguration.getStow().getOutputDirectory());
+        // the UID comes from the request, it is not trusted as a file name
+        String fileName = instanceUid.replaceAll("[^0-9A-Za-z._-]", "_") + ".dcm";
+        QureStudy study = new QureStudy(RECEIVED_PATH.resolve(fileName), instanceUid, outputDirectory.resolve(fileName));
+        Mono.fromCallable(() -> Files.createDirectories(outputDirectory))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(null, e -> log.warn("could not get the report of {}", instanceUid, e),
+                        () -> received.next(study));
+    }
+
+    private void processed(QureStudyOutcome outcome) {
+        String instanceUid = outcome.getStudy().getInstanceUid();
+        if (outcome.isSuccess()) {
+            log.info("report of {} written to {}", instanceUid, outcome.getStudy().getOutputPath());
+        } else {
+            log.warn("could not get the report of {}", instanceUid, outcome.getError());
+        }
+    }
+
+    private Mono<ServerResponse> respond(List<StoredInstance> instances) {
+        if (instances.isEmpty()) {
+            return ServerResponse.badRequest().build();
+        }
+        List<Map<String, Object>> referenced = new ArrayList<>();
+        List<Map<String, Object>> failed = new ArrayList<>();
+        for (StoredInstance instance : instances) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            if (!instance.getInstanceUid().isEmpty()) {
+                item.put(REFERENCED_SOP_INSTANCE_UID, attribute("UI", List.of(instance.getInstanceUid())));
+            }
+            if (instance.getFailureReason() == 0) {
+                referenced.add(item);
+            } else {
+                item.put(FAILURE_REASON, attribute("US", List.of(instance.getFailureReason())));
+                failed.add(item);
+            }
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        if (!failed.isEmpty()) {
+            body.put(FAILED_SOP_SEQUENCE, attribute("SQ", failed));
+        }
+        if (!referenced.isEmpty()) {
+            body.put(REFERENCED_SOP_SEQUENCE, attribute("SQ", referenced));
+        }
+        HttpStatus status = failed.isEmpty() ? HttpStatus.OK
+                : referenced.isEmpty() ? HttpStatus.CONFLICT : HttpStatus.ACCEPTED;
+        return ServerResponse.status(status).contentType(DICOM_JSON).bodyValue(body);
+    }
+
+    private static Map<String, Object> attribute(String vr, List<?> values) {
+        Map<String, Object> attribute = new LinkedHashMap<>();
+        attribute.put("vr", vr);
+        attribute.put("Value", values);
+        return attribute;
+    }
+
+    private static String unquote(@Nullable String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")
+                ? value.substring(1, value.length() - 1)
+                : value;
+    }
+
+    @Value
+    private static class StoredInstance {
+        String instanceUid;
+        /** 0 when the instance was sent to Qure. */
+        int failureReason;
+    }
+}
@@ -0,0 +1,80 @@
+package com.incepto.quredemo;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Fails the test classes which leak a Netty buffer: the leak detector only logs the buffers collected without being
+ * released, these reports are collected and checked once the tests of a class are done.
+ * <p>
+ * Registered for every test class through the service loader, it must install its detectors before the first buffer
+ * is allocated: each buffer class creates its detector once, when it is loaded.
+ */
+public class NettyLeakDetectionExtension implements BeforeAllCallback, AfterAllCallback {
+
+    private static final List<String> LEAKS = new ArrayList<>();
+
+    static {
+        ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ReportingFactory());
+    }
+
+    @Override
+    public void beforeAll(ExtensionContext context) {
+        synchronized (LEAKS) {
+            LEAKS.clear();
+        }
+    }
+
+    @Override
+    public void afterAll(ExtensionContext context) throws InterruptedException {
+        // the leaks are found once the buffers are collected, and reported when the next buffer is allocated
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+            ByteBufAllocator.DEFAULT.buffer(1).release();
+        }
+        synchronized (LEAKS) {
+            if (!LEAKS.isEmpty()) {
+                String leaks = String.join("\n", LEAKS);
+                LEAKS.clear();
+                fail(context.getDisplayName() + " leaked Netty buffers:\n" + leaks);
+            }
+        }
+    }
+
+    private static class ReportingFactory extends ResourceLeakDetectorFactory {
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval, long maxActive) {
+            return new ResourceLeakDetector<>(resource, samplingInterval) {
+                @Override
+                protected void reportTracedLeak(String resourceType, String records) {
+                    super.reportTracedLeak(resourceType, records);
+                    record(resourceType + records);
+                }
+
+                @Override
+                protected void reportUntracedLeak(String resourceType) {
+                    super.reportUntracedLeak(resourceType);
+                    record(resourceType);
+                }
+            };
+        }
+
+        private static void record(String leak) {
+            synchronized (LEAKS) {
+                LEAKS.add(leak);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QureCircuitBreakerTest {
+
+    private final QureConfiguration qureConfiguration = new QureConfiguration();
+
+    private QureCircuitBreaker breaker;
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.getHealth().setEnabled(true);
+        qureConfiguration.getHealth().setFailureThreshold(2);
+        qureConfiguration.getHealth().setQueueTimeout(Duration.ZERO);
+        breaker = new QureCircuitBreaker(qureConfiguration, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void guard_KO_failsFastOnceOpen() {
+        Mono<String> unreachable = Mono.error(new QureConnectionException(new IOException("connection refused")));
+        assertThrows(QureConnectionException.class, () -> breaker.guard(unreachable).block());
+        assertFalse(breaker.isOpen());
+        assertThrows(QureConnectionException.class, () -> breaker.guard(unreachable).block());
+        assertTrue(breaker.isOpen());
+
+        AtomicInteger calls = new AtomicInteger();
+        QureConnectionException error = assertThrows(QureConnectionException.class,
+                () -> breaker.guard(Mono.fromCallable(calls::incrementAndGet)).block());
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, error.getStatus());
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    void guard_OK_heldUntilClosed() {
+        qureConfiguration.getHealth().setQueueTimeout(Duration.ofSeconds(5));
+        breaker.open("test");
+
+        AtomicInteger calls = new AtomicInteger();
+        MonoProcessor<Integer> call = breaker.guard(Mono.fromCallable(calls::incrementAndGet)).toProcessor();
+        assertEquals(0, calls.get());
+
+        breaker.close();
+
+        assertEquals(1, call.block(Duration.ofSeconds(1)));
+    }
+}
@@ -2,6 +2,10 @@ package com.incepto.quredemo.client;
 
 import com.incepto.quredemo.TestContext;
 import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -12,23 +16,29 @@ import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest(classes = TestContext.class)
@@ -40,6 +50,9 @@ class QureClientTest {
     @Autowired
     private QureConfiguration qureConfiguration;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @TempDir
     static Path tempDir;
 
@@ -69,6 +82,7 @@ class QureClientTest {
     void after() throws IOException {
         mockWebServer.close();
         qureConfiguration.setRequestTimeout(Duration.ofSeconds(10));
+        qureConfiguration.getUpload().setCompressionEnabled(false);
     }
 
     @Test
@@ -114,6 +128,72 @@ class QureClientTest {
     }
 
 
+    @Test
+    void upload_KO_errorWithoutBody() throws IOException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(400));
+
+        QureConnectionException e = assertThrows(QureConnectionException.class,
+                () -> qureClient.upload(createFile(), "dummySopInstanceUid", false).block());
+        assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+    }
+
+    @Test
+    void upload_OK_compressed() throws InterruptedException, IOException {
+        qureConfiguration.getUpload().setCompressionEnabled(true);
+        mockWebServer.enqueue(
+                new MockResponse()
+                        .setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody("{\"message\": \"ok\", \"result\": 1, \"task_created\": 0}")
+        );
+
+        QureSeriesResponseDto response = qureClient.upload(createFile(), "dummySopInstanceUid", false).block();
+        assertNotNull(response);
+        assertEquals("ok", response.getMessage());
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest(1, TimeUnit.SECONDS);
+        assertEquals("gzip", recordedRequest.getHeader("Content-Encoding"));
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(recordedRequest.getBody().inputStream())))) {
+            String body = br.lines().collect(Collectors.joining(System.lineSeparator()));
+
+            assertTrue(body.contains("FILE_SENT"));
+            assertTrue(body.contains("Content-Type: application/dicom"));
+        }
+        assertNotNull(meterRegistry.find("qure.upload.compression.ratio").summary());
+    }
+
+    @Test
+    void upload_OK_flightRecorderEventsOfTheStudy() throws IOException {
+        Path file = Files.writeString(tempDir.resolve("recorded"), "RECORDED_FILE_SENT");
+        mockWebServer.enqueue(
+                new MockResponse()
+                        .setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody("{\"message\": \"ok\", \"result\": 1, \"task_created\": 0}")
+        );
+
+        Path recordingPath = tempDir.resolve("upload.jfr");
+        try (Recording recording = new Recording()) {
+            List.of("MultipartEncoding", "ConnectionAcquire", "RequestSent", "FirstResponseByte")
+                    .forEach(event -> recording.enable("com.incepto.qure." + event));
+            recording.start();
+            qureClient.upload(file, "1.2.3.recorded", false)
+                    .subscriberContext(QureFlightRecorder.withInstanceUid("1.2.3.recorded"))
+                    .block();
+            recording.stop();
+            recording.dump(recordingPath);
+        }
+
+        Map<String, RecordedEvent> events = RecordingFile.readAllEvents(recordingPath).stream()
+                .filter(event -> "1.2.3.recorded".equals(event.getString("instanceUid")))
+                .collect(Collectors.toMap(event -> event.getEventType().getName(), event -> event, (first, second) -> first));
+        assertTrue(events.get("com.incepto.qure.MultipartEncoding").getLong("bytes") > "RECORDED_FILE_SENT".length());
+        assertTrue(events.get("com.incepto.qure.ConnectionAcquire").getBoolean("newConnection"));
+        assertEquals("upload", events.get("com.incepto.qure.RequestSent").getString("endpoint"));
+        assertEquals(200, events.get("com.incepto.qure.FirstResponseByte").getInt("status"));
+    }
+
     @Test
     void upload_OK_withFix() throws InterruptedException, IOException {
         mockWebServer.enqueue(
@@ -156,6 +236,70 @@ class QureClientTest {
         assertTrue(recordedRequest.getHeader("Content-Type").contains("multipart/related"));
     }
 
+    @Test
+    void upload_OK_fileLargerThanHeap() throws InterruptedException, IOException {
+        mockWebServer.setBodyLimit(1024);
+        mockWebServer.enqueue(
+                new MockResponse()
+                        .setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody("{" +
+                                "\"message\": \"ok\"," +
+                                "\"result\": 1," +
+                                "\"task_created\": 0" +
+                                "}")
+        );
+        qureConfiguration.setRequestTimeout(Duration.ofSeconds(60));
+
+        // sparse file, nothing is written on disk but it is read back as zeros
+        long fileSize = Runtime.getRuntime().maxMemory() + 1024 * 1024;
+        Path largeFile = tempDir.resolve("largeFile");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(largeFile.toFile(), "rw")) {
+            randomAccessFile.setLength(fileSize);
+        }
+
+        QureSeriesResponseDto response = qureClient.upload(largeFile, "dummySopInstanceUid", false).block();
+        assertNotNull(response);
+        assertEquals(response.getMessage(), "ok");
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest(1, TimeUnit.SECONDS);
+        assertNotNull(recordedRequest);
+        assertTrue(recordedRequest.getBodySize() > fileSize);
+        assertTrue(recordedRequest.getBody().readUtf8().contains("Content-Length: " + fileSize));
+        Files.delete(largeFile);
+    }
+
+    @Test
+    void upload_OK_multipleInstancesSplitIntoRequests() throws InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            mockWebServer.enqueue(
+                    new MockResponse()
+                            .setResponseCode(200)
+                            .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .setBody("{" +
+                                    "\"message\": \"ok\"," +
+                                    "\"result\": 1," +
+                                    "\"task_created\": 0" +
+                                    "}")
+            );
+        }
+        qureConfiguration.getUpload().setMaxPartsPerRequest(2);
+
+        List<QureDicomInstance> instances = List.of(
+                new QureDicomInstance("uid1", createFile()),
+                new QureDicomInstance("uid2", createFile()),
+                new QureDicomInstance("uid3", createFile()));
+        List<QureSeriesResponseDto> responses = qureClient.upload(instances, true).collectList().block();
+        qureConfiguration.getUpload().setMaxPartsPerRequest(50);
+        assertNotNull(responses);
+        assertEquals(2, responses.size());
+
+        String firstBody = mockWebServer.takeRequest(1, TimeUnit.SECONDS).getBody().readUtf8();
+        assertTrue(firstBody.contains("name=\"uid1\""));
+        assertTrue(firstBody.contains("name=\"uid2\""));
+        String secondBody = mockWebServer.takeRequest(1, TimeUnit.SECONDS).getBody().readUtf8();
+        assertTrue(secondBody.contains("name=\"uid3\""));
+    }
 
     @Test
     void requestResult_OK() throws InterruptedException {
@@ -209,5 +353,79 @@ class QureClientTest {
 
         assertEquals("/results/MOCK_UID", recordedRequest.getPath());
         assertEquals("MOCK_AUTHORIZATION", recordedRequest.getHeader("Authorization"));
+
+        assertNotNull(meterRegistry.find("http.client.requests").tag("endpoint", "results").tag("status", "200").timer());
+    }
+
+    @Test
+    void requestResult_OK_servedFromCache() throws InterruptedException {
+        qureConfiguration.getCache().setEnabled(true);
+        qureConfiguration.getCache().setDirectory(tempDir.resolve("cache").toString());
+        mockWebServer.enqueue(
+                new MockResponse()
+                        .setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody("{" +
+                                "   \"success\": true," +
+                                "   \"message\": \"Results have been successfully generated.\"" +
+                                "}")
+        );
+
+        QureResultResponseDto response = qureClient.getResults("1.2.840.10008.1").block();
+        QureResultResponseDto cachedResponse = qureClient.getResults("1.2.840.10008.1").block();
+        qureConfiguration.getCache().setEnabled(false);
+
+        assertNotNull(response);
+        assertEquals(response, cachedResponse);
+        assertEquals(1, mockWebServer.getRequestCount());
+        assertTrue(Files.exists(tempDir.resolve("cache").resolve("1.2.840.10008.1").resolve("result.json")));
+    }
+
+    @Test
+    void upload_OK_duplicateSkipped() {
+        qureConfiguration.getDedup().setEnabled(true);
+        qureConfiguration.getDedup().setIndexPath(tempDir.resolve("uploads.idx").toString());
+        mockWebServer.enqueue(
+                new MockResponse()
+                        .setResponseCode(200)
+                        .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .setBody("{" +
+                                "\"message\": \"ok\"," +
+                                "\"result\": 1," +
+                                "\"task_created\": 0" +
+                                "}")
+        );
+
+        QureSeriesResponseDto response = qureClient.upload(createFile(), "dummySopInstanceUid", false).block();
+        QureSeriesResponseDto duplicateResponse = qureClient.upload(createFile(), "dummySopInstanceUid", false).block();
+        qureConfiguration.getDedup().setEnabled(false);
+
+        assertNotNull(response);
+        assertEquals("ok", response.getMessage());
+        assertNotNull(duplicateResponse);
+        assertEquals("already uploaded", duplicateResponse.getMessage());
+        assertEquals(1, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    void upload_OK_duplicateWithAnotherUidUploaded() {
+        qureConfiguration.getDedup().setEnabled(true);
+        qureConfiguration.getDedup().setIndexPath(tempDir.resolve("uploads.idx").toString());
+        for (int i = 0; i < 2; i++) {
+            mockWebServer.enqueue(new MockResponse()
+                    .setResponseCode(200)
+                    .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                    .setBody("{\"message\": \"ok\", \"result\": 1, \"task_created\": 0}"));
+        }
+
+        qureClient.upload(createFile(), "dummySopInstanceUid", false).block();
+        int requestCount = mockWebServer.getRequestCount();
+        // the same content with a UID taken from another file name: its result is polled with this UID
+        QureSeriesResponseDto response = qureClient.upload(createFile(), "otherSopInstanceUid", false).block();
+        qureConfiguration.getDedup().setEnabled(false);
+
+        assertNotNull(response);
+        assertEquals("ok", response.getMessage());
+        assertEquals(requestCount + 1, mockWebServer.getRequestCount());
     }
 }
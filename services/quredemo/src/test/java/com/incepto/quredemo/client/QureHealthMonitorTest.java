@@ -0,0 +1,48 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class QureHealthMonitorTest {
+
+    private final QureConfiguration qureConfiguration = new QureConfiguration();
+    private final QureClient qureClient = mock(QureClient.class);
+    private final QureCircuitBreaker breaker = new QureCircuitBreaker(qureConfiguration, new SimpleMeterRegistry());
+    private final QureHealthMonitor monitor = new QureHealthMonitor(qureClient, breaker, qureConfiguration);
+
+    @Test
+    void probe_KO_gatewayErrors() {
+        for (HttpStatus status : new HttpStatus[]{HttpStatus.BAD_GATEWAY, HttpStatus.GATEWAY_TIMEOUT}) {
+            breaker.close();
+            when(qureClient.pingStatus()).thenReturn(Mono.just(status));
+
+            assertEquals(false, monitor.probe().block());
+
+            assertFalse(monitor.isAvailable(), status.toString());
+            assertTrue(breaker.isOpen(), status.toString());
+        }
+    }
+
+    @Test
+    void probe_OK_errorsOfQure() {
+        // an overloaded Qure answers 503, it is handled by the request limiter
+        for (HttpStatus status : new HttpStatus[]{HttpStatus.BAD_REQUEST, HttpStatus.INTERNAL_SERVER_ERROR, HttpStatus.SERVICE_UNAVAILABLE}) {
+            breaker.open("test");
+            when(qureClient.pingStatus()).thenReturn(Mono.just(status));
+
+            assertEquals(true, monitor.probe().block());
+
+            assertTrue(monitor.isAvailable(), status.toString());
+            assertFalse(breaker.isOpen(), status.toString());
+        }
+    }
+}
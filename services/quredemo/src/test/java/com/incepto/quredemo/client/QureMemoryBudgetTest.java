@@ -0,0 +1,92 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QureMemoryBudgetTest {
+
+    private static final int MAX_BYTES_IN_FLIGHT = 1024 * 1024;
+    private static final int CHUNK_SIZE = MAX_BYTES_IN_FLIGHT / 2;
+
+    @TempDir
+    Path tempDir;
+
+    private QureMemoryBudget memoryBudget;
+
+    @BeforeEach
+    void before() {
+        QureConfiguration qureConfiguration = new QureConfiguration();
+        qureConfiguration.getMemory().setMaxBytesInFlight(MAX_BYTES_IN_FLIGHT);
+        memoryBudget = new QureMemoryBudget(qureConfiguration, new QureMetrics(new SimpleMeterRegistry()));
+    }
+
+    @Test
+    void read_OK_nextChunkWaitsForReleasedBudget() throws IOException {
+        byte[] content = new byte[3 * CHUNK_SIZE - 10];
+        new Random(0).nextBytes(content);
+        Path file = Files.write(tempDir.resolve("study.dcm"), content);
+
+        List<DataBuffer> chunks = new ArrayList<>();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        StepVerifier.create(memoryBudget.read(file, CHUNK_SIZE))
+                .consumeNextWith(chunks::add)
+                .consumeNextWith(chunks::add)
+                .expectNoEvent(Duration.ofMillis(200))
+                .then(() -> {
+                    assertEquals(MAX_BYTES_IN_FLIGHT, memoryBudget.getBytesInFlight());
+                    assertEquals(1, memoryBudget.getWaiters());
+                    read.writeBytes(bytes(chunks.get(0)));
+                    DataBufferUtils.release(chunks.remove(0));
+                })
+                .consumeNextWith(chunks::add)
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+
+        chunks.forEach(chunk -> read.writeBytes(bytes(chunk)));
+        assertArrayEquals(content, read.toByteArray());
+        assertTrue(chunks.get(0) instanceof NettyDataBuffer && chunks.get(0).asByteBuffer().isDirect());
+        chunks.forEach(DataBufferUtils::release);
+        assertEquals(0, memoryBudget.getBytesInFlight());
+    }
+
+    @Test
+    void govern_OK_otherBuffersCopiedAndBudgetGivenBack() {
+        DataBuffer heapBuffer = new DefaultDataBufferFactory().wrap("RESULT".getBytes());
+
+        DataBuffer governed = memoryBudget.govern(Flux.just(heapBuffer)).blockLast(Duration.ofSeconds(5));
+
+        assertTrue(governed instanceof NettyDataBuffer);
+        assertEquals(6, memoryBudget.getBytesInFlight());
+        assertArrayEquals("RESULT".getBytes(), bytes(governed));
+        DataBufferUtils.release(governed);
+        assertEquals(0, memoryBudget.getBytesInFlight());
+    }
+
+    private static byte[] bytes(DataBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.asByteBuffer().get(bytes);
+        return bytes;
+    }
+}
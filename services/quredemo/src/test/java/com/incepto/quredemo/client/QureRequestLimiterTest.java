@@ -0,0 +1,102 @@
+package com.incepto.quredemo.client;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QureRequestLimiterTest {
+
+    private final QureConfiguration qureConfiguration = new QureConfiguration();
+
+    private QureRequestLimiter limiter;
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.getLimiter().setInitialLimit(2);
+        limiter = new QureRequestLimiter(qureConfiguration, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void limit_OK_waitsForAPermit() {
+        MonoProcessor<String> first = MonoProcessor.create();
+        AtomicBoolean thirdSubscribed = new AtomicBoolean();
+        limiter.limit(first).subscribe();
+        limiter.limit(Mono.never()).subscribe();
+        MonoProcessor<String> third = limiter.limit(Mono.fromCallable(() -> {
+            thirdSubscribed.set(true);
+            return "third";
+        })).toProcessor();
+
+        assertFalse(thirdSubscribed.get());
+        assertEquals(2, limiter.getInFlight());
+
+        first.onNext("first");
+
+        assertEquals("third", third.block(Duration.ofSeconds(1)));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    void filter_OK_decreasesOnOverload() {
+        ClientRequest upload = ClientRequest.create(HttpMethod.POST, URI.create("http://qure/studies/"))
+                .attribute(QureClient.ENDPOINT_ATTRIBUTE, QureClient.UPLOAD)
+                .build();
+        ClientRequest results = ClientRequest.create(HttpMethod.GET, URI.create("http://qure/results/1"))
+                .attribute(QureClient.ENDPOINT_ATTRIBUTE, QureClient.RESULTS)
+                .build();
+
+        limiter.filter(results, request -> Mono.just(ClientResponse.create(HttpStatus.SERVICE_UNAVAILABLE).build())).block();
+        assertEquals(2, limiter.getLimit());
+
+        limiter.filter(upload, request -> Mono.just(ClientResponse.create(HttpStatus.TOO_MANY_REQUESTS).build())).block();
+        assertEquals(1.8, limiter.getLimit(), 1e-9);
+    }
+
+    @Test
+    void filter_OK_slowUploadIsNoOverload() {
+        ClientRequest upload = ClientRequest.create(HttpMethod.POST, URI.create("http://qure/studies/"))
+                .attribute(QureClient.ENDPOINT_ATTRIBUTE, QureClient.UPLOAD)
+                .build();
+        ClientRequest results = ClientRequest.create(HttpMethod.GET, URI.create("http://qure/results/1"))
+                .attribute(QureClient.ENDPOINT_ATTRIBUTE, QureClient.RESULTS)
+                .build();
+
+        for (ClientRequest slowRequest : List.of(upload, results)) {
+            limiter.filter(slowRequest, request -> Mono.just(ClientResponse.create(HttpStatus.OK).build())).block();
+            limiter.filter(slowRequest, request -> Mono.delay(Duration.ofMillis(200))
+                    .thenReturn(ClientResponse.create(HttpStatus.OK).build())).block();
+        }
+
+        // only the slow result decreased the limit, the upload of a large file is slow without any overload
+        assertEquals(1.8, limiter.getLimit(), 1e-9);
+    }
+
+    @Test
+    void limit_OK_throttledByTheQuota() {
+        qureConfiguration.getLimiter().setRequestsPerSecond(10);
+        qureConfiguration.getLimiter().setBurst(1);
+
+        long startNanos = System.nanoTime();
+        limiter.limit(Mono.just(1)).block();
+        limiter.limit(Mono.just(2)).block();
+        limiter.limit(Mono.just(3)).block();
+
+        assertTrue(Duration.ofNanos(System.nanoTime() - startNanos).toMillis() >= 150);
+    }
+}
@@ -0,0 +1,72 @@
+package com.incepto.quredemo.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.incepto.quredemo.config.QureConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QureResultCacheTest {
+
+    private final QureConfiguration qureConfiguration = new QureConfiguration();
+    private final QureResultCache qureResultCache = new QureResultCache(qureConfiguration, new ObjectMapper());
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.getCache().setEnabled(true);
+        qureConfiguration.getCache().setDirectory(tempDir.resolve("cache").toString());
+        qureResultCache.loadIndex();
+    }
+
+    @Test
+    void putResult_OK_dotUidsKeptInTheCacheDirectory() throws IOException {
+        for (String instanceUid : List.of(".", "..", "1.2.3")) {
+            qureResultCache.putResult(instanceUid, result(instanceUid));
+        }
+
+        for (String instanceUid : List.of(".", "..", "1.2.3")) {
+            assertEquals(instanceUid, qureResultCache.getResult(instanceUid).orElseThrow().getMessage());
+        }
+        assertEquals(List.of("cache"), list(tempDir));
+        assertEquals(3, list(tempDir.resolve("cache")).size());
+        assertTrue(Files.exists(tempDir.resolve("cache/1.2.3/result.json")));
+    }
+
+    @Test
+    void putResult_OK_evictionOfDotUidsOnlyDeletesTheirEntry() throws IOException {
+        Path sentinel = Files.writeString(tempDir.resolve("sentinel.txt"), "kept");
+        qureConfiguration.getCache().setMaxBytes(1);
+
+        qureResultCache.putResult("..", result(".."));
+        qureResultCache.putResult(".", result("."));
+
+        assertTrue(Files.exists(sentinel));
+        assertEquals(List.of(), list(tempDir.resolve("cache")));
+    }
+
+    private static QureResultResponseDto result(String message) {
+        QureResultResponseDto result = new QureResultResponseDto();
+        result.setSuccess(true);
+        result.setMessage(message);
+        return result;
+    }
+
+    private static List<String> list(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
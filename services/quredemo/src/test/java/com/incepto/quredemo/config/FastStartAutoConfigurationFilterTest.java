@@ -0,0 +1,29 @@
+package com.incepto.quredemo.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class FastStartAutoConfigurationFilterTest {
+
+    private static final String[] AUTO_CONFIGURATIONS = {
+            "org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration",
+            "org.springframework.boot.autoconfigure.web.reactive.WebFluxAutoConfiguration",
+            null,
+            "org.springframework.boot.actuate.autoconfigure.metrics.JvmMetricsAutoConfiguration"};
+
+    @Test
+    void match_OK_onlyListedAutoConfigurationsWithTheProfile() {
+        assertArrayEquals(new boolean[]{true, false, true, false}, match(FastStartAutoConfigurationFilter.PROFILE));
+        assertArrayEquals(new boolean[]{true, true, true, true}, match());
+    }
+
+    private static boolean[] match(String... profiles) {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setActiveProfiles(profiles);
+        FastStartAutoConfigurationFilter filter = new FastStartAutoConfigurationFilter();
+        filter.setEnvironment(environment);
+        return filter.match(AUTO_CONFIGURATIONS, null);
+    }
+}
@@ -0,0 +1,26 @@
+package com.incepto.quredemo.config;
+
+import com.incepto.quredemo.TestContext;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(classes = TestContext.class)
+@ActiveProfiles({"test", FastStartAutoConfigurationFilter.PROFILE})
+class FastStartProfileTest {
+
+    @Autowired
+    private ConfigurableListableBeanFactory beanFactory;
+
+    @Test
+    void context_OK_healthMonitorCreatedEagerly() {
+        // the beans are only created when first used
+        assertTrue(beanFactory.getBeanDefinition("qurePipeline").isLazyInit());
+        // nothing uses the monitor, which drives the circuit breaker
+        assertTrue(beanFactory.containsSingleton("qureHealthMonitor"));
+    }
+}
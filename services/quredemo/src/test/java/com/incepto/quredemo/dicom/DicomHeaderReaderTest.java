@@ -0,0 +1,167 @@
+package com.incepto.quredemo.dicom;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static com.incepto.quredemo.dicom.DicomHeaderReader.DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN;
+import static com.incepto.quredemo.dicom.DicomHeaderReader.EXPLICIT_VR_BIG_ENDIAN;
+import static com.incepto.quredemo.dicom.DicomHeaderReader.EXPLICIT_VR_LITTLE_ENDIAN;
+import static com.incepto.quredemo.dicom.DicomHeaderReader.IMPLICIT_VR_LITTLE_ENDIAN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DicomHeaderReaderTest {
+
+    private static final String SOP_INSTANCE_UID = "1.2.826.0.1.3680043.10.1";
+    private static final String STUDY_INSTANCE_UID = "1.2.826.0.1.3680043.10.2";
+
+    private final DicomHeaderReader dicomHeaderReader = new DicomHeaderReader();
+
+    @Test
+    void read_explicitVrLittleEndian_stopsBeforePixelData() throws IOException {
+        byte[] file = file(EXPLICIT_VR_LITTLE_ENDIAN, dataSet(ByteOrder.LITTLE_ENDIAN, true));
+
+        DicomHeader header = dicomHeaderReader.read(new ByteArrayInputStream(file));
+
+        assertEquals(new DicomHeader(SOP_INSTANCE_UID, STUDY_INSTANCE_UID, "CR", EXPLICIT_VR_LITTLE_ENDIAN), header);
+    }
+
+    @Test
+    void read_implicitVrLittleEndian() throws IOException {
+        byte[] file = file(IMPLICIT_VR_LITTLE_ENDIAN, dataSet(ByteOrder.LITTLE_ENDIAN, false));
+
+        DicomHeader header = dicomHeaderReader.read(new ByteArrayInputStream(file));
+
+        assertEquals(new DicomHeader(SOP_INSTANCE_UID, STUDY_INSTANCE_UID, "CR", IMPLICIT_VR_LITTLE_ENDIAN), header);
+    }
+
+    @Test
+    void read_explicitVrBigEndian() throws IOException {
+        byte[] file = file(EXPLICIT_VR_BIG_ENDIAN, dataSet(ByteOrder.BIG_ENDIAN, true));
+
+        DicomHeader header = dicomHeaderReader.read(new ByteArrayInputStream(file));
+
+        assertEquals(new DicomHeader(SOP_INSTANCE_UID, STUDY_INSTANCE_UID, "CR", EXPLICIT_VR_BIG_ENDIAN), header);
+    }
+
+    @Test
+    void read_deflated() throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            deflater.write(dataSet(ByteOrder.LITTLE_ENDIAN, true));
+        }
+        byte[] file = file(DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN, deflated.toByteArray());
+
+        DicomHeader header = dicomHeaderReader.read(new ByteArrayInputStream(file));
+
+        assertEquals(new DicomHeader(SOP_INSTANCE_UID, STUDY_INSTANCE_UID, "CR", DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN), header);
+    }
+
+    @Test
+    void read_withoutPreamble_implicitVrDataSet() throws IOException {
+        byte[] file = dataSet(ByteOrder.LITTLE_ENDIAN, false);
+
+        DicomHeader header = dicomHeaderReader.read(new ByteArrayInputStream(file));
+
+        assertEquals(new DicomHeader(SOP_INSTANCE_UID, STUDY_INSTANCE_UID, "CR", IMPLICIT_VR_LITTLE_ENDIAN), header);
+    }
+
+    private static byte[] file(String transferSyntaxUid, byte[] dataSet) {
+        ElementWriter meta = new ElementWriter(ByteOrder.LITTLE_ENDIAN, true);
+        meta.element(0x00020001, "OB", new byte[]{0, 1});
+        meta.string(0x00020003, "UI", SOP_INSTANCE_UID);
+        meta.string(0x00020010, "UI", transferSyntaxUid);
+        byte[] metaElements = meta.toByteArray();
+
+        ElementWriter file = new ElementWriter(ByteOrder.LITTLE_ENDIAN, true);
+        file.raw(new byte[128]);
+        file.raw("DICM".getBytes(StandardCharsets.US_ASCII));
+        file.element(0x00020000, "UL", ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(metaElements.length).array());
+        file.raw(metaElements);
+        file.raw(dataSet);
+        return file.toByteArray();
+    }
+
+    /**
+     * A data set with a sequence of undefined length before the attributes read, and a truncated pixel data.
+     */
+    private static byte[] dataSet(ByteOrder byteOrder, boolean explicitVr) {
+        ElementWriter item = new ElementWriter(byteOrder, explicitVr);
+        item.string(0x00081150, "UI", "1.2.840.10008.5.1.4.1.1.1");
+        item.string(0x00081155, "UI", "1.2.3.4");
+
+        ElementWriter dataSet = new ElementWriter(byteOrder, explicitVr);
+        dataSet.string(0x00080016, "UI", "1.2.840.10008.5.1.4.1.1.1");
+        dataSet.string(0x00080018, "UI", SOP_INSTANCE_UID);
+        dataSet.string(0x00080060, "CS", "CR");
+        dataSet.header(0x00081140, "SQ", -1);
+        dataSet.header(0xFFFEE000, null, -1);
+        dataSet.raw(item.toByteArray());
+        dataSet.header(0xFFFEE00D, null, 0);
+        dataSet.header(0xFFFEE000, null, 0);
+        dataSet.header(0xFFFEE0DD, null, 0);
+        dataSet.string(0x00100010, "PN", "DOE^JOHN");
+        dataSet.string(0x0020000D, "UI", STUDY_INSTANCE_UID);
+        dataSet.string(0x0020000E, "UI", "1.2.826.0.1.3680043.10.3");
+        dataSet.header(0x7FE00010, "OW", 10 * 1024 * 1024);
+        dataSet.raw(new byte[16]);
+        return dataSet.toByteArray();
+    }
+
+    private static class ElementWriter {
+
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final ByteOrder byteOrder;
+        private final boolean explicitVr;
+
+        ElementWriter(ByteOrder byteOrder, boolean explicitVr) {
+            this.byteOrder = byteOrder;
+            this.explicitVr = explicitVr;
+        }
+
+        void string(int tag, String vr, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length % 2 != 0) {
+                byte[] padded = new byte[bytes.length + 1];
+                System.arraycopy(bytes, 0, padded, 0, bytes.length);
+                padded[bytes.length] = "UI".equals(vr) ? 0 : (byte) ' ';
+                bytes = padded;
+            }
+            element(tag, vr, bytes);
+        }
+
+        void element(int tag, String vr, byte[] value) {
+            header(tag, vr, value.length);
+            raw(value);
+        }
+
+        void header(int tag, String vr, int length) {
+            ByteBuffer header = ByteBuffer.allocate(12).order(byteOrder);
+            header.putShort((short) (tag >>> 16)).putShort((short) tag);
+            if (!explicitVr || vr == null) {
+                header.putInt(length);
+            } else if (Set.of("OB", "OW", "SQ", "UN", "UT").contains(vr)) {
+                header.put(vr.getBytes(StandardCharsets.US_ASCII)).putShort((short) 0).putInt(length);
+            } else {
+                header.put(vr.getBytes(StandardCharsets.US_ASCII)).putShort((short) length);
+            }
+            output.write(header.array(), 0, header.position());
+        }
+
+        void raw(byte[] bytes) {
+            output.write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return output.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.client.QureConnectionException;
+import com.incepto.quredemo.config.QureConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class QureBatchServiceTest {
+
+    private final QurePipeline qurePipeline = mock(QurePipeline.class);
+    private final QureJobJournal qureJobJournal = mock(QureJobJournal.class);
+    private final QureConfiguration qureConfiguration = new QureConfiguration();
+    private final List<QureStudy> processedStudies = new ArrayList<>();
+    private QureBatchService qureBatchService;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.getBatch().setOutputDirectory(tempDir.resolve("output").toString());
+        qureBatchService = new QureBatchService(qurePipeline, qureConfiguration, qureJobJournal);
+
+        when(qureJobJournal.pendingJobs()).thenReturn(List.of());
+        // the study named failed.dcm fails, the others succeed
+        when(qurePipeline.process(any())).thenAnswer(invocation -> {
+            Flux<QureStudy> studies = invocation.getArgument(0);
+            return studies.doOnNext(processedStudies::add)
+                    .map(study -> new QureStudyOutcome(study, study.getInputPath().endsWith("failed.dcm")
+                            ? new QureConnectionException(HttpStatus.INTERNAL_SERVER_ERROR, "failed")
+                            : null, Duration.ZERO));
+        });
+    }
+
+    @Test
+    void process_OK_manifest() throws IOException {
+        Path manifestPath = Files.writeString(tempDir.resolve("manifest.csv"), String.join("\n",
+                "# path, SOP Instance UID",
+                "first.dcm, 1.2.1",
+                "",
+                "  nested/second.dcm  ",
+                "failed.dcm,1.2.3"));
+        qureConfiguration.getBatch().setManifestPath(manifestPath.toString());
+
+        QureBatchSummary summary = qureBatchService.process();
+
+        Path outputDirectory = tempDir.resolve("output");
+        assertEquals(List.of(
+                new QureStudy(tempDir.resolve("first.dcm"), "1.2.1", outputDirectory.resolve("first.dcm")),
+                // the SOP Instance UID of a path without one is read by the pipeline
+                new QureStudy(tempDir.resolve("nested/second.dcm"), "", outputDirectory.resolve("nested/second.dcm")),
+                new QureStudy(tempDir.resolve("failed.dcm"), "1.2.3", outputDirectory.resolve("failed.dcm"))),
+                processedStudies);
+        assertEquals(3, summary.getTotal());
+        assertEquals(2, summary.getSucceeded());
+        assertEquals(1, summary.getFailed());
+        assertTrue(Files.isDirectory(outputDirectory.resolve("nested")));
+    }
+
+    @Test
+    void process_KO_manifestOutputCollision() throws IOException {
+        Path manifestPath = Files.writeString(Files.createDirectory(tempDir.resolve("manifest")).resolve("manifest.csv"),
+                String.join("\n",
+                        "first/study.dcm",
+                        "second/study.dcm",
+                        // outside the manifest directory, its report is named after the file only
+                        "study.dcm",
+                        "../study.dcm"));
+        qureConfiguration.getBatch().setManifestPath(manifestPath.toString());
+
+        QureBatchSummary summary = qureBatchService.process();
+
+        Path outputDirectory = tempDir.resolve("output");
+        assertEquals(List.of(
+                new QureStudy(tempDir.resolve("manifest/first/study.dcm"), "", outputDirectory.resolve("first/study.dcm")),
+                new QureStudy(tempDir.resolve("manifest/second/study.dcm"), "", outputDirectory.resolve("second/study.dcm")),
+                new QureStudy(tempDir.resolve("manifest/study.dcm"), "", outputDirectory.resolve("study.dcm"))),
+                processedStudies);
+        assertEquals(4, summary.getTotal());
+        assertEquals(3, summary.getSucceeded());
+        assertEquals(1, summary.getFailed());
+    }
+
+    @Test
+    void process_OK_inputDirectoryWithPendingJobs() throws IOException {
+        Path inputDirectory = Files.createDirectory(tempDir.resolve("input"));
+        Files.writeString(inputDirectory.resolve("b.dcm"), "b");
+        Files.writeString(inputDirectory.resolve("a.dcm"), "a");
+        Files.writeString(inputDirectory.resolve(".hidden"), "hidden");
+        Files.createDirectory(inputDirectory.resolve("nested"));
+        qureConfiguration.getBatch().setInputDirectory(inputDirectory.toString());
+        Path outputDirectory = tempDir.resolve("output");
+        // a study uploaded by a previous run, and one listed again which is resumed with the directory
+        QureStudy pendingStudy = new QureStudy(tempDir.resolve("pending.dcm"), "1.2.9", outputDirectory.resolve("pending.dcm"));
+        QureStudy listedStudy = new QureStudy(inputDirectory.resolve("a.dcm"), "1.2.1", outputDirectory.resolve("a.dcm"));
+        when(qureJobJournal.pendingJobs()).thenReturn(List.of(
+                new QureJob(pendingStudy, QureJobState.UPLOADED, null),
+                new QureJob(listedStudy, QureJobState.UPLOADED, null)));
+
+        QureBatchSummary summary = qureBatchService.process();
+
+        assertEquals(List.of(
+                pendingStudy,
+                new QureStudy(inputDirectory.resolve("a.dcm"), "", outputDirectory.resolve("a.dcm")),
+                new QureStudy(inputDirectory.resolve("b.dcm"), "", outputDirectory.resolve("b.dcm"))),
+                processedStudies);
+        assertEquals(3, summary.getSucceeded());
+    }
+}
@@ -0,0 +1,116 @@
+package com.incepto.quredemo.service.v1;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.config.QureConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QureJobJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final QureConfiguration qureConfiguration = new QureConfiguration();
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.getJournal().setEnabled(true);
+        qureConfiguration.getJournal().setPath(tempDir.resolve("jobs.journal").toString());
+        qureConfiguration.getJournal().setCompactionThreshold(4);
+    }
+
+    @Test
+    void load_OK_resumesLastDurableState() throws IOException {
+        QureStudy uploaded = new QureStudy(tempDir.resolve("in 1.dcm"), "1.2.3", tempDir.resolve("out1.dcm"));
+        QureStudy ready = new QureStudy(tempDir.resolve("in2.dcm"), "1.2.4", tempDir.resolve("out2.dcm"));
+        QureResultResponseDto result = new QureResultResponseDto();
+        result.setSuccess(true);
+        result.getFiles().getReports().setDcm("https://qure/report");
+
+        QureJobJournal journal = newJournal();
+        journal.record(uploaded, QureJobState.QUEUED, null).block();
+        journal.record(uploaded, QureJobState.UPLOADED, null).block();
+        journal.record(ready, QureJobState.QUEUED, null)
+                .then(journal.record(ready, QureJobState.UPLOADED, null))
+                .then(journal.record(ready, QureJobState.RESULT_READY, result))
+                .block();
+        journal.close();
+        // a record torn by a crash
+        Files.writeString(Path.of(qureConfiguration.getJournal().getPath()), "DOWNLOADED\t1.2",
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        QureJobJournal replayed = newJournal();
+
+        assertEquals(QureJobState.UPLOADED, replayed.find("1.2.3").orElseThrow().getState());
+        assertEquals(uploaded, replayed.find("1.2.3").orElseThrow().getStudy());
+        QureJob readyJob = replayed.find("1.2.4").orElseThrow();
+        assertEquals(QureJobState.RESULT_READY, readyJob.getState());
+        assertEquals("https://qure/report", readyJob.getResult().getFiles().getReports().getDcm());
+        assertEquals(2, replayed.pendingJobs().size());
+        // compacted to one line per job
+        assertEquals(2, Files.readAllLines(Path.of(qureConfiguration.getJournal().getPath())).size());
+        replayed.close();
+    }
+
+    @Test
+    void record_OK_compactedOnceAboveThreshold() throws IOException {
+        QureStudy study = new QureStudy(tempDir.resolve("in.dcm"), "1.2.5", tempDir.resolve("out.dcm"));
+        QureJobJournal journal = newJournal();
+        for (QureJobState state : QureJobState.values()) {
+            journal.record(study, state, new QureResultResponseDto()).block();
+        }
+        journal.close();
+
+        assertTrue(Files.readAllLines(Path.of(qureConfiguration.getJournal().getPath())).size() < 4);
+        assertTrue(newJournal().pendingJobs().isEmpty());
+    }
+
+    @Test
+    void record_OK_downloadedJobsDroppedByCompaction() throws IOException {
+        QureJobJournal journal = newJournal();
+        QureStudy pending = new QureStudy(tempDir.resolve("pending.dcm"), "1.2.0", tempDir.resolve("pending-out.dcm"));
+        journal.record(pending, QureJobState.UPLOADED, null).block();
+        for (int i = 1; i <= 5; i++) {
+            QureStudy study = new QureStudy(tempDir.resolve("in" + i + ".dcm"), "1.2." + i, tempDir.resolve("out" + i + ".dcm"));
+            journal.record(study, QureJobState.UPLOADED, null)
+                    .then(journal.record(study, QureJobState.DOWNLOADED, new QureResultResponseDto()))
+                    .block();
+        }
+
+        assertTrue(journal.find("1.2.1").isEmpty());
+        assertEquals(QureJobState.UPLOADED, journal.find("1.2.0").orElseThrow().getState());
+        journal.close();
+        QureJobJournal replayed = newJournal();
+        assertEquals(1, Files.readAllLines(Path.of(qureConfiguration.getJournal().getPath())).size());
+        assertEquals(1, replayed.pendingJobs().size());
+        replayed.close();
+    }
+
+    @Test
+    void record_KO_closed() {
+        QureJobJournal journal = newJournal();
+        journal.close();
+
+        QureStudy study = new QureStudy(tempDir.resolve("in.dcm"), "1.2.6", tempDir.resolve("out.dcm"));
+        assertThrows(IllegalStateException.class, () -> journal.record(study, QureJobState.QUEUED, null).block());
+        assertTrue(journal.find("1.2.6").isEmpty());
+    }
+
+    private QureJobJournal newJournal() {
+        QureJobJournal journal = new QureJobJournal(qureConfiguration, new ObjectMapper());
+        journal.load();
+        return journal;
+    }
+}
@@ -0,0 +1,123 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.client.QureConnectionException;
+import com.incepto.quredemo.client.QureMetrics;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class QurePipelineTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final QureService qureService = mock(QureService.class);
+    private QurePipeline qurePipeline;
+
+    @BeforeEach
+    void before() {
+        QureConfiguration qureConfiguration = new QureConfiguration();
+        qureConfiguration.getPipeline().getUpload().setConcurrency(1);
+        qureConfiguration.getPipeline().getUpload().setQueueSize(1);
+        qurePipeline = new QurePipeline(qureService, qureConfiguration, new QureMetrics(meterRegistry));
+
+        when(qureService.readJob(any())).thenAnswer(invocation -> Mono.just(
+                new QureJob(invocation.getArgument(0), QureJobState.QUEUED, null)));
+        when(qureService.uploadJob(any())).thenAnswer(invocation -> Mono.just(
+                next(invocation.getArgument(0), QureJobState.UPLOADED)));
+        when(qureService.downloadJob(any())).thenAnswer(invocation -> Mono.just(
+                next(invocation.getArgument(0), QureJobState.DOWNLOADED)));
+        when(qureService.persistJob(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    }
+
+    @AfterEach
+    void after() {
+        qurePipeline.close();
+    }
+
+    @Test
+    void process_OK_nextStudiesUploadedWhileResultsAwaited() {
+        // no result is ready before every study is uploaded, which a study at a time would never reach
+        AtomicInteger uploads = new AtomicInteger();
+        MonoProcessor<Void> allUploaded = MonoProcessor.create();
+        doAnswer(invocation -> {
+            if (uploads.incrementAndGet() == 3) {
+                allUploaded.onComplete();
+            }
+            return Mono.just(next(invocation.getArgument(0), QureJobState.UPLOADED));
+        }).when(qureService).uploadJob(any());
+        when(qureService.awaitJobResult(any())).thenAnswer(invocation -> allUploaded
+                .thenReturn(next(invocation.getArgument(0), QureJobState.RESULT_READY)));
+
+        List<QureStudyOutcome> outcomes = qurePipeline.process(Flux.fromIterable(studies(3)))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertNotNull(outcomes);
+        assertEquals(3, outcomes.size());
+        assertTrue(outcomes.stream().allMatch(QureStudyOutcome::isSuccess));
+        assertEquals(0, gauge("qure.pipeline.queue", "upload"));
+        assertEquals(0, gauge("qure.pipeline.utilization", "result"));
+        assertEquals(3, meterRegistry.get("qure.pipeline.stage").tag("stage", "download").timer().count());
+    }
+
+    @Test
+    void process_KO_failedStudySkipsNextStages() {
+        when(qureService.awaitJobResult(any())).thenAnswer(invocation -> {
+            QureJob job = invocation.getArgument(0);
+            return job.getStudy().getInstanceUid().equals("1.2.2")
+                    ? Mono.error(new QureConnectionException(HttpStatus.INTERNAL_SERVER_ERROR, "failed"))
+                    : Mono.just(next(job, QureJobState.RESULT_READY));
+        });
+
+        Map<String, QureStudyOutcome> outcomes = qurePipeline.process(Flux.fromIterable(studies(3)))
+                .collectMap(outcome -> outcome.getStudy().getInstanceUid(), Function.identity())
+                .block(Duration.ofSeconds(5));
+
+        assertNotNull(outcomes);
+        assertTrue(outcomes.get("1.2.1").isSuccess());
+        assertTrue(outcomes.get("1.2.2").getError() instanceof QureConnectionException);
+        assertTrue(outcomes.get("1.2.3").isSuccess());
+        verify(qureService, never()).downloadJob(argThat(job -> job.getStudy().getInstanceUid().equals("1.2.2")));
+        assertEquals(1, meterRegistry.get("qure.study").tag("outcome", "error").timer().count());
+    }
+
+    private double gauge(String name, String stage) {
+        return meterRegistry.get(name).tag("stage", stage).gauge().value();
+    }
+
+    private static QureJob next(QureJob job, QureJobState state) {
+        return new QureJob(job.getStudy(), state, state == QureJobState.UPLOADED ? null : new QureResultResponseDto());
+    }
+
+    private static List<QureStudy> studies(int count) {
+        return IntStream.rangeClosed(1, count)
+                .mapToObj(i -> new QureStudy(Path.of("study" + i + ".dcm"), "1.2." + i, Path.of("report" + i + ".dcm")))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,90 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.client.QureClient;
+import com.incepto.quredemo.client.QureMetrics;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.config.QureConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class QureResultPollerTest {
+
+    private final QureClient qureClient = mock(QureClient.class);
+    private final QureConfiguration qureConfiguration = new QureConfiguration();
+    private QureResultPoller qureResultPoller;
+
+    private volatile long readyAtNanos;
+    private final List<Long> pollNanos = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.setRetryRate(Duration.ofMillis(100));
+        qureConfiguration.getPolling().setMinBackoff(Duration.ofMillis(100));
+        qureConfiguration.getPolling().setJitter(0);
+        qureConfiguration.getPolling().setHistorySize(3);
+        qureResultPoller = new QureResultPoller(qureClient, qureConfiguration, new QureMetrics(new SimpleMeterRegistry()));
+
+        when(qureClient.getResults(any())).thenAnswer(invocation -> {
+            pollNanos.add(System.nanoTime());
+            QureResultResponseDto result = new QureResultResponseDto();
+            result.setSuccess(System.nanoTime() >= readyAtNanos);
+            result.setMessage(result.isSuccess() ? "ready" : "pending");
+            return Mono.just(result);
+        });
+    }
+
+    @Test
+    void firstPollDelay_shrinks_whenResultsAreReadySooner() {
+        qureConfiguration.getPolling().setInitialDelay(Duration.ofMillis(800));
+
+        for (int i = 0; i < 8; i++) {
+            awaitResult(Duration.ZERO);
+        }
+
+        Duration delay = qureResultPoller.firstPollDelay();
+        assertTrue(delay.compareTo(Duration.ofMillis(200)) <= 0, "first poll delay " + delay);
+    }
+
+    @Test
+    void firstPollDelay_grows_whenResultsAreReadyLater() {
+        qureConfiguration.getPolling().setInitialDelay(Duration.ofMillis(100));
+
+        for (int i = 0; i < 3; i++) {
+            awaitResult(Duration.ofMillis(600));
+        }
+
+        Duration delay = qureResultPoller.firstPollDelay();
+        assertTrue(delay.compareTo(Duration.ofMillis(300)) >= 0, "first poll delay " + delay);
+        assertTrue(delay.compareTo(Duration.ofMillis(1200)) <= 0, "first poll delay " + delay);
+    }
+
+    @Test
+    void awaitResult_OK_pendingPollsSpacedByTheBackoff() {
+        qureConfiguration.getPolling().setInitialDelay(Duration.ofMillis(800));
+
+        awaitResult(Duration.ofMillis(1200));
+
+        assertTrue(pollNanos.size() >= 3, "polls " + pollNanos.size());
+        for (int i = 1; i < pollNanos.size(); i++) {
+            // the retry rate, not the first poll delay again
+            Duration spacing = Duration.ofNanos(pollNanos.get(i) - pollNanos.get(i - 1));
+            assertTrue(spacing.compareTo(Duration.ofMillis(400)) < 0, "spacing " + spacing);
+        }
+    }
+
+    private void awaitResult(Duration processingTime) {
+        readyAtNanos = System.nanoTime() + processingTime.toNanos();
+        qureResultPoller.awaitResult("1.2.3").block(Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,230 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.TestContext;
+import com.incepto.quredemo.client.QureClient;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.config.QureConfiguration;
+import com.incepto.quredemo.config.QureFileType;
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+
+@SpringBootTest(classes = TestContext.class)
+class QureServiceTest {
+
+    @Autowired
+    private QureService qureService;
+
+    @Autowired
+    private QureConfiguration qureConfiguration;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private QureClient qureClient;
+
+    @TempDir
+    Path tempDir;
+
+    private final MockWebServer mockWebServer = new MockWebServer();
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.setRequestTimeout(Duration.ofSeconds(2));
+        qureConfiguration.setBaseUrl(mockWebServer.url("/").toString());
+        qureConfiguration.setAuthorization("MOCK_AUTHORIZATION");
+    }
+
+    @AfterEach
+    void after() throws IOException {
+        mockWebServer.close();
+        qureConfiguration.setRequestTimeout(Duration.ofSeconds(10));
+        qureConfiguration.setResultTypes(List.of(QureFileType.PDF, QureFileType.OVERLAY));
+        qureConfiguration.getDownload().setRetryBackoff(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void downloadResult_OK_everyResultType() throws IOException {
+        qureConfiguration.setResultTypes(List.of(QureFileType.PDF, QureFileType.OVERLAY, QureFileType.GT));
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // the files are requested at the same time, each one answers with its path
+                return new MockResponse()
+                        .setResponseCode(200)
+                        .setBodyDelay(100, TimeUnit.MILLISECONDS)
+                        .setBody(Objects.requireNonNull(request.getPath()));
+            }
+        });
+        QureResultResponseDto result = new QureResultResponseDto();
+        result.setSuccess(true);
+        result.getFiles().getReports().setDcm(mockWebServer.url("/report").toString());
+        result.getFiles().getReports().setPdf(mockWebServer.url("/pdf").toString());
+        result.getFiles().setSc(mockWebServer.url("/sc").toString());
+        result.getFiles().setGt(List.of(mockWebServer.url("/gt1").toString(), mockWebServer.url("/gt2").toString()));
+        QureStudy study = new QureStudy(tempDir.resolve("input.dcm"), "DOWNLOAD_UID", tempDir.resolve("output.dcm"));
+
+        Path outputPath = qureService.downloadResult(study, result).block();
+
+        assertEquals(study.getOutputPath(), outputPath);
+        assertEquals("/report", Files.readString(tempDir.resolve("output.dcm")));
+        assertEquals("/pdf", Files.readString(tempDir.resolve("output.pdf")));
+        assertEquals("/sc", Files.readString(tempDir.resolve("output-overlay.dcm")));
+        assertEquals("/gt1", Files.readString(tempDir.resolve("output-gt-1.dcm")));
+        assertEquals("/gt2", Files.readString(tempDir.resolve("output-gt-2.dcm")));
+        assertEquals(5, mockWebServer.getRequestCount());
+        assertNotNull(meterRegistry.find("qure.result.download").tag("artifact", "pdf").timer());
+    }
+
+    @Test
+    void download_OK_resumedWithRange() throws IOException, InterruptedException {
+        qureConfiguration.getDownload().setRetryBackoff(Duration.ofMillis(100));
+        byte[] content = new byte[64 * 1024];
+        new Random(42).nextBytes(content);
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String range = request.getHeader("Range");
+                if (range == null) {
+                    // the connection is closed in the middle of the body
+                    return new MockResponse()
+                            .setResponseCode(200)
+                            .setHeader("Accept-Ranges", "bytes")
+                            .setHeader("ETag", "\"v1\"")
+                            .setBody(new Buffer().write(content))
+                            .throttleBody(8 * 1024, 10, TimeUnit.MILLISECONDS)
+                            .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                }
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                return new MockResponse()
+                        .setResponseCode(206)
+                        .setHeader("ETag", "\"v1\"")
+                        .setHeader("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length)
+                        .setBody(new Buffer().write(content, start, content.length - start));
+            }
+        });
+        Path outputPath = tempDir.resolve("resumed.dcm");
+
+        assertEquals(outputPath, qureService.download("RESUME_UID", mockWebServer.url("/object").toString(), outputPath).block());
+
+        assertArrayEquals(content, Files.readAllBytes(outputPath));
+        assertEquals(2, mockWebServer.getRequestCount());
+        assertNull(mockWebServer.takeRequest().getHeader("Range"));
+        RecordedRequest resumed = mockWebServer.takeRequest();
+        assertTrue(Objects.requireNonNull(resumed.getHeader("Range")).matches("bytes=[1-9][0-9]*-"));
+        assertEquals("\"v1\"", resumed.getHeader("If-Range"));
+        assertEquals(List.of(outputPath), listFiles());
+    }
+
+    @Test
+    void download_OK_mismatchedRangeDownloadedAgain() throws IOException, InterruptedException {
+        qureConfiguration.getDownload().setRetryBackoff(Duration.ofMillis(100));
+        byte[] content = new byte[64 * 1024];
+        new Random(42).nextBytes(content);
+        AtomicInteger wholeRequests = new AtomicInteger();
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                MockResponse response = new MockResponse()
+                        .setHeader("Last-Modified", "Sat, 17 Oct 2026 08:00:00 GMT")
+                        .setBody(new Buffer().write(content));
+                if (request.getHeader("Range") != null) {
+                    // the range is ignored, the whole object is sent as a partial content
+                    return response.setResponseCode(206)
+                            .setHeader("Content-Range", "bytes 0-" + (content.length - 1) + "/" + content.length);
+                } else if (wholeRequests.incrementAndGet() == 1) {
+                    return response.setResponseCode(200)
+                            .throttleBody(8 * 1024, 10, TimeUnit.MILLISECONDS)
+                            .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                }
+                return response.setResponseCode(200);
+            }
+        });
+        Path outputPath = tempDir.resolve("mismatched.dcm");
+
+        assertEquals(outputPath, qureService.download("MISMATCH_UID", mockWebServer.url("/object").toString(), outputPath).block());
+
+        assertArrayEquals(content, Files.readAllBytes(outputPath));
+        assertEquals(3, mockWebServer.getRequestCount());
+        assertNull(mockWebServer.takeRequest().getHeader("Range"));
+        assertEquals("Sat, 17 Oct 2026 08:00:00 GMT", mockWebServer.takeRequest().getHeader("If-Range"));
+        assertNull(mockWebServer.takeRequest().getHeader("Range"));
+        assertEquals(List.of(outputPath), listFiles());
+    }
+
+    @Test
+    void download_OK_cachedObjectStreamedToOutput() throws IOException {
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        Flux<DataBuffer> content = Flux.just("first ", "second ", "third")
+                .map(chunk -> bufferFactory.wrap(chunk.getBytes()));
+        doReturn(true).when(qureClient).isObjectCached("CACHED_UID", "/object");
+        doReturn(content).when(qureClient).downloadObject("CACHED_UID", "/object");
+        Path outputPath = tempDir.resolve("cached.dcm");
+
+        assertEquals(outputPath, qureService.download("CACHED_UID", "/object", outputPath).block());
+
+        assertEquals("first second third", Files.readString(outputPath));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(List.of(outputPath), files.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void download_cancelled_temporaryFileDeleted() throws IOException, InterruptedException {
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        // the object never completes, the download is cancelled after its first buffer
+        Flux<DataBuffer> content = Flux.concat(Flux.just(bufferFactory.wrap("first".getBytes())), Flux.never());
+        doReturn(true).when(qureClient).isObjectCached("CANCELLED_UID", "/object");
+        doReturn(content).when(qureClient).downloadObject("CANCELLED_UID", "/object");
+        Path outputPath = tempDir.resolve("cancelled.dcm");
+
+        Disposable download = qureService.download("CANCELLED_UID", "/object", outputPath).subscribe();
+        for (int i = 0; i < 100 && listFiles().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, listFiles().size());
+        download.dispose();
+
+        assertEquals(List.of(), listFiles());
+    }
+
+    private List<Path> listFiles() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.incepto.quredemo.service.v1;
+
+import com.incepto.quredemo.config.QureConfiguration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class QureWatchServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void run_OK_processesStableFiles() throws Exception {
+        QureConfiguration qureConfiguration = new QureConfiguration();
+        QureConfiguration.Watch watch = qureConfiguration.getWatch();
+        watch.setInputDirectories(List.of(tempDir.resolve("inbox").toString()));
+        watch.setOutputDirectory(tempDir.resolve("outbox").toString());
+        watch.setProcessedDirectory(tempDir.resolve("done").toString());
+        watch.setPollInterval(Duration.ofMillis(200));
+        watch.setStableTime(Duration.ofMillis(300));
+        List<QureStudy> processedStudies = new CopyOnWriteArrayList<>();
+        QurePipeline qurePipeline = mock(QurePipeline.class);
+        when(qurePipeline.process(any())).thenAnswer(invocation -> {
+            Flux<QureStudy> studies = invocation.getArgument(0);
+            return studies.doOnNext(processedStudies::add)
+                    .map(study -> new QureStudyOutcome(study, null, Duration.ZERO));
+        });
+        QureWatchService watchService = new QureWatchService(qurePipeline, qureConfiguration);
+
+        Thread daemon = new Thread(() -> {
+            try {
+                watchService.run();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        daemon.start();
+        try {
+            Thread.sleep(300);
+            Files.writeString(tempDir.resolve("inbox/study.dcm.part"), "DICOM");
+            Files.move(tempDir.resolve("inbox/study.dcm.part"), tempDir.resolve("inbox/study.dcm"));
+
+            // the SOP Instance UID is read by the pipeline
+            QureStudy study = new QureStudy(tempDir.resolve("inbox/study.dcm"), "", tempDir.resolve("outbox/study.dcm"));
+            for (int i = 0; i < 50 && Files.exists(study.getInputPath()); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(Files.exists(study.getInputPath()));
+            // the file being written is not processed
+            assertEquals(List.of(study), processedStudies);
+            assertEquals("DICOM", Files.readString(tempDir.resolve("done/study.dcm")));
+        } finally {
+            watchService.stop();
+            daemon.join(5000);
+        }
+        assertFalse(daemon.isAlive());
+    }
+}
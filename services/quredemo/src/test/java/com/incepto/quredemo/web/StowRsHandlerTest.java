@@ -0,0 +1,224 @@
+package com.incepto.quredemo.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.incepto.quredemo.TestContext;
+import com.incepto.quredemo.client.QureResultResponseDto;
+import com.incepto.quredemo.config.QureConfiguration;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.ByteString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(classes = TestContext.class, properties = "incepto.qure.stow.enabled=true")
+class StowRsHandlerTest {
+
+    private static final String BOUNDARY = "stow-boundary";
+    private static final int PIXEL_DATA_SIZE = 200 * 1024;
+
+    @Autowired
+    private StowRsHandler stowRsHandler;
+
+    @Autowired
+    private QureConfiguration qureConfiguration;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @TempDir
+    Path tempDir;
+
+    private final MockWebServer mockWebServer = new MockWebServer();
+
+    private WebTestClient webTestClient;
+
+    @BeforeEach
+    void before() {
+        qureConfiguration.setRequestTimeout(Duration.ofSeconds(2));
+        qureConfiguration.setBaseUrl(mockWebServer.url("/").toString());
+        qureConfiguration.setAuthorization("MOCK_AUTHORIZATION");
+        qureConfiguration.getPolling().setInitialDelay(Duration.ofMillis(100));
+        qureConfiguration.getStow().setOutputDirectory(tempDir.toString());
+        webTestClient = WebTestClient.bindToRouterFunction(
+                RouterFunctions.route(RequestPredicates.POST("/studies"), stowRsHandler::store)).build();
+    }
+
+    @AfterEach
+    void after() throws IOException {
+        mockWebServer.close();
+        qureConfiguration.setRequestTimeout(Duration.ofSeconds(10));
+        qureConfiguration.getPolling().setInitialDelay(Duration.ofSeconds(5));
+        qureConfiguration.getStow().setOutputDirectory("stow");
+    }
+
+    @Test
+    void store_OK_partsStreamedToQure() throws IOException, InterruptedException {
+        List<byte[]> uploads = new ArrayList<>();
+        mockWebServer.setDispatcher(qureDispatcher(uploads, false));
+        byte[] first = instance("1.2.826.0.1.3680043.10.1", 1);
+        byte[] second = instance("1.2.826.0.1.3680043.10.2", 2);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(part("application/dicom", first));
+        body.write(part("text/plain", "not an instance".getBytes(StandardCharsets.UTF_8)));
+        body.write(part("application/dicom", second));
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        webTestClient.post()
+                .uri("/studies")
+                .contentType(MediaType.parseMediaType("multipart/related; type=\"application/dicom\"; boundary=" + BOUNDARY))
+                .body(chunks(body.toByteArray(), 7000), DataBuffer.class)
+                .exchange()
+                .expectStatus().isAccepted()
+                .expectHeader().contentType(StowRsHandler.DICOM_JSON)
+                .expectBody()
+                .jsonPath("$['00081199'].Value[0]['00081155'].Value[0]").isEqualTo("1.2.826.0.1.3680043.10.1")
+                .jsonPath("$['00081199'].Value[1]['00081155'].Value[0]").isEqualTo("1.2.826.0.1.3680043.10.2")
+                .jsonPath("$['00081198'].Value[0]['00081197'].Value[0]").isEqualTo(StowRsHandler.CANNOT_UNDERSTAND);
+
+        // each instance is sent in its own request, unchanged
+        assertEquals(2, uploads.size());
+        assertTrue(ByteString.of(uploads.get(0)).indexOf(ByteString.of(first)) >= 0);
+        assertTrue(ByteString.of(uploads.get(1)).indexOf(ByteString.of(second)) >= 0);
+
+        // the reports are downloaded in the background
+        assertEquals("REPORT", awaitReport("1.2.826.0.1.3680043.10.1"));
+        assertEquals("REPORT", awaitReport("1.2.826.0.1.3680043.10.2"));
+    }
+
+    @Test
+    void store_OK_nextPartsStoredAfterQureFailure() throws IOException, InterruptedException {
+        List<byte[]> uploads = new ArrayList<>();
+        mockWebServer.setDispatcher(qureDispatcher(uploads, true));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(part("application/dicom", instance("1.2.826.0.1.3680043.10.1", 1)));
+        body.write(part("application/dicom", instance("1.2.826.0.1.3680043.10.2", 2)));
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        webTestClient.post()
+                .uri("/studies")
+                .contentType(MediaType.parseMediaType("multipart/related; type=\"application/dicom\"; boundary=" + BOUNDARY))
+                .body(chunks(body.toByteArray(), 7000), DataBuffer.class)
+                .exchange()
+                .expectStatus().isAccepted()
+                .expectBody()
+                .jsonPath("$['00081198'].Value[0]['00081155'].Value[0]").isEqualTo("1.2.826.0.1.3680043.10.1")
+                .jsonPath("$['00081198'].Value[0]['00081197'].Value[0]").isEqualTo(StowRsHandler.PROCESSING_FAILURE)
+                .jsonPath("$['00081199'].Value[0]['00081155'].Value[0]").isEqualTo("1.2.826.0.1.3680043.10.2");
+
+        assertEquals("REPORT", awaitReport("1.2.826.0.1.3680043.10.2"));
+    }
+
+    @Test
+    void store_KO_notMultipartRelated() {
+        webTestClient.post()
+                .uri("/studies")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .bodyValue(new byte[16])
+                .exchange()
+                .expectStatus().isEqualTo(415);
+        assertEquals(0, mockWebServer.getRequestCount());
+    }
+
+    private String awaitReport(String instanceUid) throws IOException, InterruptedException {
+        Path report = tempDir.resolve(instanceUid + ".dcm");
+        for (int i = 0; i < 100 && !Files.exists(report); i++) {
+            Thread.sleep(100);
+        }
+        return Files.readString(report);
+    }
+
+    /**
+     * Answers as Qure, the first upload is cut before its body is read when failFirstUpload is set.
+     */
+    private Dispatcher qureDispatcher(List<byte[]> uploads, boolean failFirstUpload) {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = Objects.requireNonNull(request.getPath());
+                if (path.startsWith("/studies/")) {
+                    synchronized (uploads) {
+                        uploads.add(request.getBody().readByteArray());
+                        if (failFirstUpload && uploads.size() == 1) {
+                            return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START);
+                        }
+                    }
+                    return new MockResponse()
+                            .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .setBody("{\"message\": \"ok\", \"result\": 1, \"task_created\": 1}");
+                } else if (path.startsWith("/results/")) {
+                    QureResultResponseDto result = new QureResultResponseDto();
+                    result.setSuccess(true);
+                    result.getFiles().getReports().setDcm(mockWebServer.url("/report").toString());
+                    try {
+                        return new MockResponse()
+                                .setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                                .setBody(objectMapper.writeValueAsString(result));
+                    } catch (IOException e) {
+                        return new MockResponse().setResponseCode(500);
+                    }
+                }
+                return new MockResponse().setBody("REPORT");
+            }
+        };
+    }
+
+    /**
+     * An implicit VR little endian data set without preamble, its pixel data spans many chunks.
+     */
+    private static byte[] instance(String sopInstanceUid, long seed) {
+        byte[] uid = (sopInstanceUid.length() % 2 == 0 ? sopInstanceUid : sopInstanceUid + "\0")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] pixelData = new byte[PIXEL_DATA_SIZE];
+        new Random(seed).nextBytes(pixelData);
+        ByteBuffer buffer = ByteBuffer.allocate(16 + uid.length + pixelData.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) 0x0008).putShort((short) 0x0018).putInt(uid.length).put(uid);
+        buffer.putShort((short) 0x7FE0).putShort((short) 0x0010).putInt(pixelData.length).put(pixelData);
+        return buffer.array();
+    }
+
+    private static byte[] part(String contentType, byte[] content) throws IOException {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        part.write(("--" + BOUNDARY + "\r\nContent-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        part.write(content);
+        part.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        return part.toByteArray();
+    }
+
+    private static Flux<DataBuffer> chunks(byte[] body, int chunkSize) {
+        DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        return Flux.range(0, (body.length + chunkSize - 1) / chunkSize)
+                .map(i -> bufferFactory.wrap(Arrays.copyOfRange(body, i * chunkSize, Math.min(body.length, (i + 1) * chunkSize))));
+    }
+}